@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.quarantine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for any number of producers and a single consumer that
+ * never blocks or locks. Each slot has a sequence number telling whether it
+ * may be written (it equals the position of the producer) or read (it is one
+ * past the position of the consumer), so producers only contend on claiming
+ * a position and a full queue turns away new items instead of waiting.
+ *
+ * @param <T> the items
+ */
+final class EventRing<T> {
+
+   private final AtomicReferenceArray<T> items;
+   private final AtomicLongArray sequences;
+   private final int mask;
+
+   /** the next position to write, claimed by producers */
+   private final AtomicLong tail = new AtomicLong();
+   /** the next position to read, only advanced by the consumer */
+   private final AtomicLong head = new AtomicLong();
+
+   /**
+    * @param capacity rounded up to a power of two
+    */
+   EventRing(int capacity) {
+      int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+      items = new AtomicReferenceArray<T>(size);
+      sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+         sequences.set(i, i);
+      }
+      mask = size - 1;
+   }
+
+   int capacity() {
+      return mask + 1;
+   }
+
+   /**
+    * @return false if the queue is full
+    */
+   boolean offer(T item) {
+      long position = tail.get();
+      while (true) {
+         int index = (int) (position & mask);
+         long difference = sequences.get(index) - position;
+         if (difference == 0) {
+            if (tail.compareAndSet(position, position + 1)) {
+               items.set(index, item);
+               sequences.set(index, position + 1);
+               return true;
+            }
+            position = tail.get();
+         } else if (difference < 0) {
+            // the consumer hasn't freed this slot from the previous round
+            return false;
+         } else {
+            // another producer claimed it
+            position = tail.get();
+         }
+      }
+   }
+
+   /**
+    * Only to be called by the consumer.
+    *
+    * @return the oldest item, or null if there is none (yet)
+    */
+   T poll() {
+      long position = head.get();
+      int index = (int) (position & mask);
+      if (sequences.get(index) != position + 1) {
+         return null;
+      }
+      T item = items.get(index);
+      items.set(index, null);
+      sequences.set(index, position + mask + 1);
+      head.set(position + 1);
+      return item;
+   }
+
+   /**
+    * Number of items waiting, a snapshot that may be off while producers
+    * are writing
+    */
+   int size() {
+      return (int) Math.max(0, Math.min(capacity(), tail.get() - head.get()));
+   }
+}
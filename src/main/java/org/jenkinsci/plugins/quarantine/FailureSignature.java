@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.quarantine;
+
+/**
+ * Fingerprints how a test failed, so a quarantined test failing the same way
+ * over and over can be told apart from one failing in a new way.
+ *
+ * The fingerprint is a 64 bit FNV-1a hash over the stack trace (or the error
+ * message if there is none), with every word containing a digit reduced to a
+ * single <code>#</code>: line numbers, object ids, hash codes, ports, temp
+ * file names and the like differ between runs of the same failure. It is
+ * computed in one pass without copying the trace.
+ */
+final class FailureSignature {
+
+   /** no failure, or none that was fingerprinted */
+   static final long NONE = 0;
+
+   /** only the start of huge traces (e.g. of deep recursion) is looked at */
+   static final int MAX_LENGTH = 16 * 1024;
+
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   private FailureSignature() {
+   }
+
+   static long of(String stackTrace, String errorDetails) {
+      String text = stackTrace != null && !stackTrace.isEmpty() ? stackTrace : errorDetails;
+      if (text == null) {
+         text = "";
+      }
+      long hash = FNV_OFFSET;
+      int length = Math.min(text.length(), MAX_LENGTH);
+      int i = 0;
+      while (i < length) {
+         char c = text.charAt(i);
+         if (!isWordChar(c)) {
+            // whitespace is folded so reformatted traces hash the same
+            if (Character.isWhitespace(c)) {
+               c = ' ';
+               while (i + 1 < length && Character.isWhitespace(text.charAt(i + 1))) {
+                  i++;
+               }
+            }
+            hash = (hash ^ c) * FNV_PRIME;
+            i++;
+            continue;
+         }
+         int end = i;
+         boolean digit = false;
+         while (end < length && isWordChar(text.charAt(end))) {
+            digit |= Character.isDigit(text.charAt(end));
+            end++;
+         }
+         if (digit) {
+            hash = (hash ^ '#') * FNV_PRIME;
+         } else {
+            for (int j = i; j < end; j++) {
+               hash = (hash ^ text.charAt(j)) * FNV_PRIME;
+            }
+         }
+         i = end;
+      }
+      // keep NONE for "no failure"
+      return hash != NONE ? hash : 1;
+   }
+
+   private static boolean isWordChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_';
+   }
+
+   static String toString(long signature) {
+      return signature != NONE ? String.format("%016x", signature) : null;
+   }
+}
@@ -0,0 +1,213 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link OutcomeWindow} of every test of every job. Each job's windows
+ * are read from <code>quarantine-flakiness.txt</code> in the job directory
+ * when first needed, and written back once per build, or once per change
+ * of the quarantines that reset some of them.
+ *
+ * Tests that haven't run for {@link #FORGET_AFTER_BUILDS} builds are dropped
+ * when saving, so removed tests don't pile up.
+ */
+@Extension
+public class FlakinessStore {
+
+   private static final Logger LOGGER = Logger.getLogger(FlakinessStore.class.getName());
+
+   private static final String FILE_NAME = "quarantine-flakiness.txt";
+
+   static final int FORGET_AFTER_BUILDS = 100;
+
+   private final ConcurrentMap<String, JobWindows> jobs = new ConcurrentHashMap<String, JobWindows>();
+
+   public static FlakinessStore get() {
+      return Jenkins.getInstance().getExtensionList(FlakinessStore.class).get(0);
+   }
+
+   /**
+    * The windows of one job. All access synchronizes on this.
+    */
+   static final class JobWindows {
+      private File file;
+      private final Map<String, OutcomeWindow> windows = new HashMap<String, OutcomeWindow>();
+      /** the latest build recorded */
+      private int latestBuild;
+      /** a window was reset since the file was written */
+      private boolean dirty;
+
+      JobWindows(File file) {
+         this.file = file;
+      }
+
+      synchronized void record(String testObjectId, boolean failed, int size, int build) {
+         OutcomeWindow window = windows.get(testObjectId);
+         if (window == null) {
+            window = new OutcomeWindow();
+            windows.put(testObjectId, window);
+         } else if (build <= window.lastBuild) {
+            // recorded already, or an older build finishing late
+            return;
+         }
+         window.record(failed, size, build);
+         latestBuild = Math.max(latestBuild, build);
+      }
+
+      /**
+       * Forgets the outcomes of a test. They are written by the next
+       * {@link #flush()} or save.
+       *
+       * @return false if there was nothing to forget
+       */
+      synchronized boolean reset(String testObjectId) {
+         OutcomeWindow window = windows.get(testObjectId);
+         if (window == null || window.count == 0) {
+            return false;
+         }
+         window.reset();
+         dirty = true;
+         return true;
+      }
+
+      synchronized double getScore(String testObjectId) {
+         OutcomeWindow window = windows.get(testObjectId);
+         return window != null ? window.getScore() : -1;
+      }
+
+      synchronized void save(int build) throws IOException {
+         AtomicFileWriter writer = new AtomicFileWriter(file, "UTF-8");
+         try {
+            for (Iterator<Map.Entry<String, OutcomeWindow>> it = windows.entrySet().iterator(); it.hasNext();) {
+               Map.Entry<String, OutcomeWindow> entry = it.next();
+               OutcomeWindow window = entry.getValue();
+               if (build - window.lastBuild > FORGET_AFTER_BUILDS) {
+                  it.remove();
+                  continue;
+               }
+               writer.write(Long.toHexString(window.outcomes) + " " + window.count + " " + window.lastBuild + " "
+                     + entry.getKey() + "\n");
+            }
+            writer.commit();
+            dirty = false;
+         } finally {
+            writer.abort();
+         }
+      }
+
+      /**
+       * Writes the windows if some were reset since they were last written
+       */
+      synchronized void flush() throws IOException {
+         if (dirty) {
+            save(latestBuild);
+         }
+      }
+
+      /**
+       * Follows the job directory after a rename
+       */
+      synchronized void moveTo(File file) {
+         this.file = file;
+      }
+
+      private synchronized void load() {
+         if (!file.exists()) {
+            return;
+         }
+         try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+               String line;
+               while ((line = reader.readLine()) != null) {
+                  // test ids may contain spaces, so they come last
+                  String[] fields = line.split(" ", 4);
+                  if (fields.length < 4) {
+                     continue;
+                  }
+                  OutcomeWindow window = new OutcomeWindow(Long.parseUnsignedLong(fields[0], 16),
+                        Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                  windows.put(fields[3], window);
+                  latestBuild = Math.max(latestBuild, window.lastBuild);
+               }
+            } finally {
+               reader.close();
+            }
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed reading " + file, e);
+         } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "unexpected content in " + file, e);
+         }
+      }
+   }
+
+   JobWindows forJob(Job<?, ?> job) {
+      String key = job.getFullName();
+      JobWindows windows = jobs.get(key);
+      if (windows == null) {
+         // loaded before it is shared, another thread may load the same file
+         // in the meantime but only one of them wins
+         JobWindows created = new JobWindows(new File(job.getRootDir(), FILE_NAME));
+         created.load();
+         windows = jobs.putIfAbsent(key, created);
+         if (windows == null) {
+            windows = created;
+         }
+      }
+      return windows;
+   }
+
+   /**
+    * Drops the windows of a deleted job
+    */
+   void remove(String jobFullName) {
+      jobs.remove(jobFullName);
+   }
+
+   /**
+    * Drops the windows of the jobs inside a deleted folder
+    */
+   void removeAll(String folderFullName) {
+      String prefix = folderFullName + "/";
+      for (String key : new ArrayList<String>(jobs.keySet())) {
+         if (key.startsWith(prefix)) {
+            jobs.remove(key);
+         }
+      }
+   }
+
+   /**
+    * Moves the windows of a renamed job, whose directory moved along
+    */
+   void rename(String oldFullName, String newFullName, File rootDir) {
+      JobWindows windows = jobs.remove(oldFullName);
+      if (windows != null) {
+         windows.moveTo(new File(rootDir, FILE_NAME));
+         jobs.putIfAbsent(newFullName, windows);
+      }
+   }
+
+   /**
+    * @return the flakiness score of a test, or -1 if there is none (yet)
+    */
+   public double getScore(Job<?, ?> job, String testObjectId) {
+      return forJob(job).getScore(testObjectId);
+   }
+}
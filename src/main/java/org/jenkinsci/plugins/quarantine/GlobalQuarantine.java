@@ -0,0 +1,191 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Quarantines that apply to more than one job, keyed by test id. A scope is
+ * either a folder (by its full name), covering every job below it, or
+ * {@link #GLOBAL_SCOPE}, covering every job on the controller.
+ *
+ * Finding the quarantine of a test costs one hash lookup per folder level of
+ * the job, independent of how many jobs there are.
+ */
+@Extension
+public class GlobalQuarantine {
+
+   private static final Logger LOGGER = Logger.getLogger(GlobalQuarantine.class.getName());
+
+   public static final String GLOBAL_SCOPE = "";
+
+   private final ConcurrentMap<String, ConcurrentMap<String, QuarantineRecord>> scopes =
+         new ConcurrentHashMap<String, ConcurrentMap<String, QuarantineRecord>>();
+
+   private volatile boolean loaded;
+
+   public static GlobalQuarantine get() {
+      return Jenkins.getInstance().getExtensionList(GlobalQuarantine.class).get(0);
+   }
+
+   private XmlFile getConfigFile() {
+      return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), "quarantine-global.xml"));
+   }
+
+   @SuppressWarnings("unchecked")
+   private void ensureLoaded() {
+      if (loaded) {
+         return;
+      }
+      synchronized (this) {
+         if (loaded) {
+            return;
+         }
+         XmlFile file = getConfigFile();
+         if (file.exists()) {
+            try {
+               Map<String, Map<String, QuarantineRecord>> stored = (Map<String, Map<String, QuarantineRecord>>) file
+                     .read();
+               for (Map.Entry<String, Map<String, QuarantineRecord>> entry : stored.entrySet()) {
+                  scopes.put(entry.getKey(), new ConcurrentHashMap<String, QuarantineRecord>(entry.getValue()));
+               }
+            } catch (IOException e) {
+               LOGGER.log(Level.WARNING, "failed loading " + file, e);
+            }
+         }
+         loaded = true;
+      }
+   }
+
+   private synchronized void save() {
+      Map<String, Map<String, QuarantineRecord>> copy = new HashMap<String, Map<String, QuarantineRecord>>();
+      for (Map.Entry<String, ConcurrentMap<String, QuarantineRecord>> entry : scopes.entrySet()) {
+         if (!entry.getValue().isEmpty()) {
+            copy.put(entry.getKey(), new HashMap<String, QuarantineRecord>(entry.getValue()));
+         }
+      }
+      try {
+         getConfigFile().write(copy);
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed saving global quarantine", e);
+      }
+   }
+
+   /**
+    * The folder scope of a job, or null if the job is not inside a folder
+    */
+   static String folderScopeOf(Job<?, ?> job) {
+      ItemGroup<?> parent = job.getParent();
+      return parent instanceof Item ? ((Item) parent).getFullName() : null;
+   }
+
+   public void put(String scope, QuarantineRecord record) {
+      ensureLoaded();
+      ConcurrentMap<String, QuarantineRecord> tests = scopes.get(scope);
+      if (tests == null) {
+         scopes.putIfAbsent(scope, new ConcurrentHashMap<String, QuarantineRecord>());
+         tests = scopes.get(scope);
+      }
+      tests.put(record.getTestObjectId(), record);
+      save();
+      if (record.getExpiryMillis() != 0) {
+         QuarantineExpiry.get().schedule(null, scope, record);
+      }
+   }
+
+   public void remove(String scope, String testObjectId) {
+      ensureLoaded();
+      ConcurrentMap<String, QuarantineRecord> tests = scopes.get(scope);
+      if (tests != null && tests.remove(testObjectId) != null) {
+         save();
+      }
+   }
+
+   /**
+    * Removes the given record, unless it has been replaced in the meantime
+    */
+   boolean remove(String scope, QuarantineRecord record) {
+      ensureLoaded();
+      ConcurrentMap<String, QuarantineRecord> tests = scopes.get(scope);
+      if (tests != null && tests.remove(record.getTestObjectId(), record)) {
+         save();
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Finds the quarantine covering the given test in the given job, checking
+    * the closest folder first.
+    *
+    * @return the scope and the record, or null if there is none
+    */
+   public Map.Entry<String, QuarantineRecord> find(Job<?, ?> job, String testObjectId) {
+      ensureLoaded();
+      if (scopes.isEmpty()) {
+         return null;
+      }
+      ItemGroup<?> group = job.getParent();
+      while (group instanceof Item) {
+         String scope = ((Item) group).getFullName();
+         QuarantineRecord record = lookup(scope, testObjectId);
+         if (record != null) {
+            return new AbstractMap.SimpleImmutableEntry<String, QuarantineRecord>(scope, record);
+         }
+         group = ((Item) group).getParent();
+      }
+      QuarantineRecord record = lookup(GLOBAL_SCOPE, testObjectId);
+      if (record != null) {
+         return new AbstractMap.SimpleImmutableEntry<String, QuarantineRecord>(GLOBAL_SCOPE, record);
+      }
+      return null;
+   }
+
+   /**
+    * The quarantine of a test in exactly the given scope
+    */
+   public QuarantineRecord get(String scope, String testObjectId) {
+      ensureLoaded();
+      return lookup(scope, testObjectId);
+   }
+
+   /**
+    * A copy of all records, by scope and test id
+    */
+   Map<String, Map<String, QuarantineRecord>> getAll() {
+      ensureLoaded();
+      Map<String, Map<String, QuarantineRecord>> copy = new HashMap<String, Map<String, QuarantineRecord>>();
+      for (Map.Entry<String, ConcurrentMap<String, QuarantineRecord>> entry : scopes.entrySet()) {
+         copy.put(entry.getKey(), new HashMap<String, QuarantineRecord>(entry.getValue()));
+      }
+      return copy;
+   }
+
+   private QuarantineRecord lookup(String scope, String testObjectId) {
+      ConcurrentMap<String, QuarantineRecord> tests = scopes.get(scope);
+      return tests != null ? tests.get(testObjectId) : null;
+   }
+
+   public boolean isEmpty() {
+      ensureLoaded();
+      for (ConcurrentMap<String, QuarantineRecord> tests : scopes.values()) {
+         if (!tests.isEmpty()) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
@@ -2,12 +2,12 @@ package org.jenkinsci.plugins.quarantine;
 
 import hudson.model.Hudson;
 import hudson.model.TaskListener;
-import hudson.model.User;
 import hudson.tasks.Mailer;
 import hudson.tasks.junit.CaseResult;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +31,7 @@ import jenkins.model.JenkinsLocationConfiguration;
 public class MailNotifier {
 
    HashMap<String, List<ResultActionPair>> emailsToSend = new HashMap<String, List<ResultActionPair>>();
+   HashMap<String, List<ResultActionPair>> releasesToSend = new HashMap<String, List<ResultActionPair>>();
    PrintStream logger;
 
    public MailNotifier(TaskListener build_listener) {
@@ -42,8 +43,25 @@ public class MailNotifier {
       // System.out.println(msg);
    }
 
-   public void addResult(CaseResult result, QuarantineTestAction action) {
-      String username = action.quarantinedByName();
+   /**
+    * @param repeated the test failed the same way as before, which the
+    *           quarantiner was told about already. Still counted in a digest.
+    */
+   public void addResult(CaseResult result, QuarantineTestAction action, boolean repeated) {
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      if (config != null && config.getDigestMode() != QuarantineConfiguration.DigestMode.OFF) {
+         // sent later, together with the failures of other builds
+         NotificationDigest.get().add(action.getQuarantinedBy(), result, action);
+         return;
+      }
+      if (repeated) {
+         return;
+      }
+
+      String username = action.getQuarantinedBy();
+      if (username == null) {
+         return;
+      }
 
       if (!emailsToSend.containsKey(username)) {
          emailsToSend.put(username, new ArrayList<ResultActionPair>());
@@ -52,39 +70,50 @@ public class MailNotifier {
 
    }
 
-   public String getEmailAddress(String username) {
-      String address = null;
-      User u = User.get(username);
-      Mailer.UserProperty p = u.getProperty(Mailer.UserProperty.class);
-      if (p == null) {
-         println("failed obtaining email address for user " + username);
-         return address;
+   /**
+    * Tells the given user that a test they quarantined was released
+    * automatically
+    */
+   public void addRelease(String username, CaseResult result, QuarantineTestAction action) {
+      if (username == null) {
+         return;
       }
-
-      if (p.getAddress() == null) {
-         println("failed obtaining email address (is null) for user " + username);
-         return address;
+      if (!releasesToSend.containsKey(username)) {
+         releasesToSend.put(username, new ArrayList<ResultActionPair>());
       }
+      releasesToSend.get(username).add(new ResultActionPair(result, action));
+   }
 
-      return p.getAddress();
+   public String getEmailAddress(String username) {
+      String address = UserInfoCache.get().getEmailAddress(username);
+      if (address == null) {
+         println("failed obtaining email address for user " + username);
+      }
+      return address;
    }
 
    public void sendEmails() {
       for (Map.Entry<String, List<ResultActionPair>> entry : emailsToSend.entrySet()) {
-         sendEmail(entry.getKey(), entry.getValue());
+         List<ResultActionPair> released = releasesToSend.remove(entry.getKey());
+         sendEmail(entry.getKey(), entry.getValue(),
+               released != null ? released : Collections.<ResultActionPair>emptyList());
+      }
+      for (Map.Entry<String, List<ResultActionPair>> entry : releasesToSend.entrySet()) {
+         sendEmail(entry.getKey(), Collections.<ResultActionPair>emptyList(), entry.getValue());
       }
    }
 
-   private String renderEmail(String username, List<ResultActionPair> results) throws UnsupportedEncodingException {
+   private String render(String template, Map<String, Object> variables) throws UnsupportedEncodingException {
       ByteArrayOutputStream output;
       try {
          Script script;
          JellyContext ctx = new JellyContext();
-         ctx.setVariable("user", username);
-         ctx.setVariable("results", results);
+         for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            ctx.setVariable(variable.getKey(), variable.getValue());
+         }
          ctx.setVariable("rootURL", Hudson.getInstance().getRootUrl());
-         InputStream template = getClass().getResourceAsStream("MailNotifier/message.jelly");
-         script = ctx.compileScript(new InputSource(template));
+         InputStream input = getClass().getResourceAsStream(template);
+         script = ctx.compileScript(new InputSource(input));
          if (script == null) {
             println("[Quarantine]: failed compiling jelly script");
             return null;
@@ -105,7 +134,47 @@ public class MailNotifier {
       return output.toString("UTF-8");
    }
 
+   private String renderEmail(String username, List<ResultActionPair> results, List<ResultActionPair> released)
+         throws UnsupportedEncodingException {
+      Map<String, Object> variables = new HashMap<String, Object>();
+      variables.put("user", UserInfoCache.get().getDisplayName(username));
+      variables.put("results", results);
+      variables.put("released", released);
+      return render("MailNotifier/message.jelly", variables);
+   }
+
    public void sendEmail(String username, List<ResultActionPair> results) {
+      sendEmail(username, results, Collections.<ResultActionPair>emptyList());
+   }
+
+   public void sendEmail(String username, List<ResultActionPair> results, List<ResultActionPair> released) {
+      try {
+         send(username, results.isEmpty() ? "Quarantined tests released" : "Failure of quarantined tests",
+               renderEmail(username, results, released));
+      } catch (UnsupportedEncodingException e) {
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Sends the collected failures of one user's quarantined tests.
+    *
+    * @param dropped number of further tests that did not fit into the digest
+    */
+   public void sendDigest(String username, String displayName, List<NotificationDigest.Entry> entries,
+         int dropped) {
+      Map<String, Object> variables = new HashMap<String, Object>();
+      variables.put("user", displayName);
+      variables.put("entries", entries);
+      variables.put("dropped", dropped);
+      try {
+         send(username, "Digest of quarantined test failures", render("MailNotifier/digest.jelly", variables));
+      } catch (UnsupportedEncodingException e) {
+         e.printStackTrace();
+      }
+   }
+
+   private void send(String username, String subject, String message) {
       String address = getEmailAddress(username);
       if (address == null) {
          return;
@@ -123,9 +192,8 @@ public class MailNotifier {
          msg.setFrom(new InternetAddress(config.getAdminAddress()));
          msg.setSentDate(new Date());
          msg.setRecipients(Message.RecipientType.TO, address);
-         msg.setSubject("Failure of quarantined tests");
+         msg.setSubject(subject);
 
-         String message = renderEmail(username, results);
          if (message == null) {
             println("[Quarantine]: unable to render message");
             return;
@@ -137,8 +205,6 @@ public class MailNotifier {
          println("[Quarantine]: sent email to " + address);
       } catch (MessagingException e) {
          println("[Quarantine]: failed sending email: " + e.toString());
-      } catch (UnsupportedEncodingException e) {
-         e.printStackTrace();
       }
    }
 
@@ -0,0 +1,223 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.tasks.junit.CaseResult;
+import hudson.util.LogTaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Collects failures of quarantined tests from all builds and mails them to
+ * each quarantiner once an hour or once a day, rather than once per build.
+ *
+ * Each user's buffer holds one entry per job and test, counting repeated
+ * failures instead of adding to the buffer, and is bounded so a flood of
+ * failures can't exhaust memory. Adding a failure is a map update, the cost
+ * of rendering and sending is paid once per user and flush. Buffers only
+ * live in memory and are lost on restart.
+ */
+@Extension
+public class NotificationDigest extends PeriodicWork {
+
+   private static final Logger LOGGER = Logger.getLogger(NotificationDigest.class.getName());
+
+   static final int MAX_ENTRIES_PER_USER = 500;
+
+   private static final int MAX_ERROR_LENGTH = 500;
+
+   private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+   private final ConcurrentMap<String, UserDigest> digests = new ConcurrentHashMap<String, UserDigest>();
+
+   private volatile long lastFlush = System.currentTimeMillis();
+
+   public static NotificationDigest get() {
+      return Jenkins.getInstance().getExtensionList(PeriodicWork.class).get(NotificationDigest.class);
+   }
+
+   /**
+    * One failing quarantined test, as shown in the digest mail.
+    */
+   public static final class Entry {
+      private final String jobName;
+      private final String jobUrl;
+      private final String testName;
+      private final String testUrl;
+      private final String reason;
+      private final long quarantineDate;
+      private final long firstSeen;
+      private long lastSeen;
+      private int failures;
+      private String errorDetails;
+
+      Entry(CaseResult result, QuarantineTestAction action, long now) {
+         Job<?, ?> job = result.getOwner().getParent();
+         this.jobName = job.getFullDisplayName();
+         this.jobUrl = job.getUrl();
+         this.testName = result.getFullName();
+         this.testUrl = result.getUrl();
+         this.reason = action.getReason();
+         this.quarantineDate = action.getDate().getTime();
+         this.firstSeen = now;
+      }
+
+      void failed(CaseResult result, long now) {
+         failures++;
+         lastSeen = now;
+         errorDetails = StringUtils.abbreviate(result.getErrorDetails(), MAX_ERROR_LENGTH);
+      }
+
+      public String getJobName() {
+         return jobName;
+      }
+
+      public String getJobUrl() {
+         return jobUrl;
+      }
+
+      public String getTestName() {
+         return testName;
+      }
+
+      public String getTestUrl() {
+         return testUrl;
+      }
+
+      public String getReason() {
+         return reason;
+      }
+
+      public Date getQuarantineDate() {
+         return new Date(quarantineDate);
+      }
+
+      public Date getFirstSeen() {
+         return new Date(firstSeen);
+      }
+
+      public Date getLastSeen() {
+         return new Date(lastSeen);
+      }
+
+      public int getFailures() {
+         return failures;
+      }
+
+      public String getErrorDetails() {
+         return errorDetails;
+      }
+   }
+
+   private static final class UserDigest {
+      private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+      private int dropped;
+      /** set once flushed, failures go into a fresh digest from then on */
+      private boolean closed;
+   }
+
+   @Override
+   public long getRecurrencePeriod() {
+      return HOUR;
+   }
+
+   /**
+    * Adds a failure of a quarantined test to the digest of its quarantiner.
+    */
+   void add(String username, CaseResult result, QuarantineTestAction action) {
+      if (username == null) {
+         return;
+      }
+      String key = result.getOwner().getParent().getFullName() + "|" + result.getId();
+      long now = System.currentTimeMillis();
+      while (true) {
+         UserDigest digest = digests.get(username);
+         if (digest == null) {
+            digests.putIfAbsent(username, new UserDigest());
+            continue;
+         }
+         synchronized (digest) {
+            if (digest.closed) {
+               continue;
+            }
+            Entry entry = digest.entries.get(key);
+            if (entry == null) {
+               if (digest.entries.size() >= MAX_ENTRIES_PER_USER) {
+                  digest.dropped++;
+                  return;
+               }
+               entry = new Entry(result, action, now);
+               digest.entries.put(key, entry);
+            }
+            entry.failed(result, now);
+            return;
+         }
+      }
+   }
+
+   /**
+    * Number of tests waiting to be sent to the given user
+    */
+   int getPending(String username) {
+      UserDigest digest = digests.get(username);
+      if (digest == null) {
+         return 0;
+      }
+      synchronized (digest) {
+         return digest.entries.size();
+      }
+   }
+
+   @Override
+   protected void doRun() throws Exception {
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      QuarantineConfiguration.DigestMode mode = config != null ? config.getDigestMode()
+            : QuarantineConfiguration.DigestMode.OFF;
+      long now = System.currentTimeMillis();
+      // a little slack so the daily flush doesn't slip by an hour because
+      // this ran a few seconds early
+      if (mode == QuarantineConfiguration.DigestMode.DAILY
+            && now - lastFlush < TimeUnit.DAYS.toMillis(1) - HOUR / 2) {
+         return;
+      }
+      flush();
+   }
+
+   /**
+    * Sends and empties all digests.
+    */
+   void flush() {
+      lastFlush = System.currentTimeMillis();
+      MailNotifier notifier = new MailNotifier(new LogTaskListener(LOGGER, Level.INFO));
+      for (String username : new ArrayList<String>(digests.keySet())) {
+         UserDigest digest = digests.remove(username);
+         if (digest == null) {
+            continue;
+         }
+         List<Entry> entries;
+         int dropped;
+         synchronized (digest) {
+            digest.closed = true;
+            entries = new ArrayList<Entry>(digest.entries.values());
+            dropped = digest.dropped;
+         }
+         if (entries.isEmpty()) {
+            continue;
+         }
+         notifier.sendDigest(username, UserInfoCache.get().getDisplayName(username), entries, dropped);
+      }
+   }
+}
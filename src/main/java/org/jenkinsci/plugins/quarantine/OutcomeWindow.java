@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.quarantine;
+
+/**
+ * The latest outcomes of one test, one bit per build (set if it failed),
+ * newest in the lowest bit. Up to {@link #MAX_SIZE} outcomes fit into a single
+ * long, so recording an outcome and scoring are a few bit operations.
+ *
+ * The flakiness score is the share of consecutive outcomes that differ: 0 for
+ * a test that always passes or always fails, 1 for one that alternates.
+ */
+final class OutcomeWindow {
+
+   static final int MAX_SIZE = 64;
+
+   /** fewer outcomes than this don't say much, no score is given */
+   static final int MIN_SAMPLES = 5;
+
+   long outcomes;
+   int count;
+   /** the last build this test ran in */
+   int lastBuild;
+
+   OutcomeWindow() {
+   }
+
+   OutcomeWindow(long outcomes, int count, int lastBuild) {
+      this.outcomes = outcomes;
+      this.count = count;
+      this.lastBuild = lastBuild;
+   }
+
+   /**
+    * Adds the outcome of a build, dropping the oldest one once the window
+    * holds <code>size</code> outcomes.
+    */
+   void record(boolean failed, int size, int build) {
+      outcomes = (outcomes << 1) | (failed ? 1 : 0);
+      count = Math.min(count + 1, Math.min(size, MAX_SIZE));
+      lastBuild = build;
+   }
+
+   /**
+    * Forgets the outcomes so far, e.g. once the test was released from
+    * quarantine, the flips that got it there shouldn't count again.
+    */
+   void reset() {
+      outcomes = 0;
+      count = 0;
+   }
+
+   int getFailures() {
+      return Long.bitCount(outcomes & mask(count));
+   }
+
+   /**
+    * Number of times the test went from passing to failing or back
+    */
+   int getFlips() {
+      if (count < 2) {
+         return 0;
+      }
+      return Long.bitCount((outcomes ^ (outcomes >>> 1)) & mask(count - 1));
+   }
+
+   /**
+    * @return the score between 0 and 1, or -1 if there are too few outcomes
+    */
+   double getScore() {
+      if (count < MIN_SAMPLES) {
+         return -1;
+      }
+      return (double) getFlips() / (count - 1);
+   }
+
+   private static long mask(int bits) {
+      return bits >= MAX_SIZE ? -1L : (1L << bits) - 1;
+   }
+}
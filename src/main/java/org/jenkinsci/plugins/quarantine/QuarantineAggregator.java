@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResultAction;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Decides whether a job that only aggregates test results passes from the
+ * latest builds of the listed jobs, leaving out the failures of quarantined
+ * tests.
+ *
+ * Matrix builds don't need this: their result is the worst of their
+ * configurations', and that can't be made better afterwards. Configurations
+ * that record their tests with {@link QuarantinableJUnitResultArchiver}
+ * leave out quarantined failures themselves, so the matrix build does too.
+ *
+ * The failure count of a run is stored with its build, and its quarantined
+ * failures are in its {@link QuarantineSummary}, so no test result has to be
+ * loaded unless a run was recorded before there were summaries.
+ */
+public class QuarantineAggregator extends Recorder {
+
+   private final String jobs;
+
+   @DataBoundConstructor
+   public QuarantineAggregator(String jobs) {
+      this.jobs = Util.fixEmptyAndTrim(jobs);
+   }
+
+   /**
+    * Comma separated names of the jobs whose latest builds are aggregated
+    */
+   public String getJobs() {
+      return jobs;
+   }
+
+   public BuildStepMonitor getRequiredMonitorService() {
+      return BuildStepMonitor.NONE;
+   }
+
+   /**
+    * Failures of a run, and how many of them are quarantined
+    */
+   static final class Counts {
+      int failed;
+      int quarantined;
+
+      int getRemaining() {
+         return failed - quarantined;
+      }
+   }
+
+   @Override
+   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+      if (jobs == null) {
+         return true;
+      }
+      List<Run<?, ?>> runs = new ArrayList<Run<?, ?>>();
+      for (String name : StringUtils.split(jobs, ',')) {
+         Job<?, ?> job = Jenkins.getInstance().getItem(name.trim(), build.getParent(), Job.class);
+         if (job == null) {
+            listener.getLogger().println("[Quarantine]: no such job " + name.trim());
+            continue;
+         }
+         Run<?, ?> lb = job.getLastCompletedBuild();
+         if (lb != null) {
+            runs.add(lb);
+         }
+      }
+      decide(build, runs, listener);
+      return true;
+   }
+
+   static Counts decide(Run<?, ?> build, Collection<? extends Run<?, ?>> runs, BuildListener listener) {
+      Counts total = new Counts();
+      for (Run<?, ?> run : runs) {
+         Counts counts = count(run);
+         if (counts.getRemaining() > 0) {
+            listener.getLogger().println("[Quarantine]: " + run.getFullDisplayName() + " has "
+                  + counts.getRemaining() + " unquarantined failures");
+         }
+         total.failed += counts.failed;
+         total.quarantined += counts.quarantined;
+      }
+      listener.getLogger().println("[Quarantine]: " + total.quarantined + " quarantined and " + total.getRemaining()
+            + " unquarantined failures in " + runs.size() + " runs");
+      if (total.getRemaining() > 0) {
+         build.setResult(Result.UNSTABLE);
+      }
+      return total;
+   }
+
+   static Counts count(Run<?, ?> run) {
+      Counts counts = new Counts();
+      TestResultAction action = run.getAction(TestResultAction.class);
+      if (action == null) {
+         return counts;
+      }
+      // kept in build.xml, doesn't load the result
+      counts.failed = action.getFailCount();
+      if (counts.failed == 0) {
+         return counts;
+      }
+      Map<String, QuarantineSummary.Entry> summary = QuarantineSummary.read(QuarantineSummary.getFile(run));
+      if (summary != null) {
+         for (QuarantineSummary.Entry entry : summary.values()) {
+            if (!entry.isPassed() && !entry.isSkipped()) {
+               counts.quarantined++;
+            }
+         }
+      } else {
+         for (CaseResult result : action.getResult().getFailedTests()) {
+            QuarantineTestAction quarantine = result.getTestAction(QuarantineTestAction.class);
+            if (quarantine != null && quarantine.isQuarantined()) {
+               counts.quarantined++;
+            }
+         }
+      }
+      return counts;
+   }
+
+   @Extension
+   public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+
+      @Override
+      public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+         return true;
+      }
+
+      @Override
+      public String getDisplayName() {
+         return Messages.QuarantineAggregator_DisplayName();
+      }
+   }
+}
@@ -0,0 +1,640 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Who quarantined or released which test, and when. Events are appended as
+ * JSON lines to segment files in <code>quarantine-audit</code>, a new segment
+ * is started once the current one is full and the oldest segments are deleted
+ * once there are too many or they are too old.
+ *
+ * Two indexes are kept in memory and rebuilt from the segments at startup: a
+ * sparse one of every {@link #TIME_INDEX_INTERVAL}th event's time and position
+ * per segment, so a time range query only reads the events in that range, and
+ * the position of every event by test, so the history of one test is read
+ * without scanning anything.
+ *
+ * Appending takes a lock of its own. Readers go by the segments and positions
+ * as they were when they started, which are replaced rather than changed, so
+ * a long query never holds up the events being logged.
+ */
+@Extension
+public class QuarantineAuditLog {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineAuditLog.class.getName());
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final String PREFIX = "segment-";
+   private static final String SUFFIX = ".log";
+
+   static final int TIME_INDEX_INTERVAL = 64;
+
+   private static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+   private static final int DEFAULT_MAX_SEGMENTS = 64;
+   private static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(365);
+
+   /**
+    * What happened to a quarantine
+    */
+   public enum Type {
+      QUARANTINE, RELEASE, AUTO_RELEASE, EXPIRY, STALE
+   }
+
+   /**
+    * One entry of the log. The job is the one the change was made in, the
+    * scope is set if the quarantine applies to a whole folder or everything.
+    * Scope wide quarantines that expire on their own have no job. A
+    * quarantine given a time to live has its expiry, 0 otherwise.
+    */
+   public static final class Event {
+      private final long time;
+      private final Type type;
+      private final String job;
+      private final String scope;
+      private final String test;
+      private final String user;
+      private final String reason;
+      private final long expiry;
+
+      public Event(long time, Type type, String job, String scope, String test, String user, String reason) {
+         this(time, type, job, scope, test, user, reason, 0);
+      }
+
+      public Event(long time, Type type, String job, String scope, String test, String user, String reason,
+            long expiry) {
+         this.time = time;
+         this.type = type;
+         this.job = job;
+         this.scope = scope;
+         this.test = test;
+         this.user = user;
+         this.reason = reason;
+         this.expiry = expiry;
+      }
+
+      public long getTime() {
+         return time;
+      }
+
+      public Type getType() {
+         return type;
+      }
+
+      public String getJob() {
+         return job;
+      }
+
+      public String getScope() {
+         return scope;
+      }
+
+      public String getTest() {
+         return test;
+      }
+
+      public String getUser() {
+         return user;
+      }
+
+      public String getReason() {
+         return reason;
+      }
+
+      public long getExpiry() {
+         return expiry;
+      }
+
+      Event at(long time) {
+         return new Event(time, type, job, scope, test, user, reason, expiry);
+      }
+
+      /**
+       * Whether this event concerns the given job or anything in the given
+       * folder
+       */
+      boolean isWithin(String item) {
+         String name = job != null ? job : scope;
+         return name != null && (name.equals(item) || name.startsWith(item + "/"));
+      }
+
+      JSONObject toJSON() {
+         JSONObject json = new JSONObject();
+         json.put("time", time);
+         json.put("type", type.name());
+         putIfSet(json, "job", job);
+         putIfSet(json, "scope", scope);
+         json.put("test", test);
+         putIfSet(json, "user", user);
+         putIfSet(json, "reason", reason);
+         if (expiry != 0) {
+            json.put("expiry", expiry);
+         }
+         return json;
+      }
+
+      private static void putIfSet(JSONObject json, String key, String value) {
+         if (value != null) {
+            json.put(key, value);
+         }
+      }
+
+      static Event fromJSON(String line) {
+         JSONObject json = JSONObject.fromObject(line);
+         return new Event(json.getLong("time"), Type.valueOf(json.getString("type")), optString(json, "job"),
+               optString(json, "scope"), json.getString("test"), optString(json, "user"),
+               optString(json, "reason"), json.has("expiry") ? json.getLong("expiry") : 0);
+      }
+
+      private static String optString(JSONObject json, String key) {
+         return json.has(key) ? json.getString(key) : null;
+      }
+   }
+
+   /**
+    * What is known about a segment file. Never changed, appending an event
+    * replaces it, so readers can go by a segment as it was when they started
+    * without holding the lock of the appender.
+    */
+   private static final class Segment {
+      final long id;
+      final File file;
+      final long size;
+      final long first;
+      final long last;
+      /**
+       * time and offset of every TIME_INDEX_INTERVAL-th event. Only the first
+       * <code>indexed</code> are part of this segment, the arrays are shared
+       * with the segments that replace it.
+       */
+      final long[] times;
+      final long[] offsets;
+      final int indexed;
+      final int count;
+
+      Segment(long id, File file) {
+         this(id, file, 0, Long.MAX_VALUE, Long.MIN_VALUE, new long[8], new long[8], 0, 0);
+      }
+
+      private Segment(long id, File file, long size, long first, long last, long[] times, long[] offsets,
+            int indexed, int count) {
+         this.id = id;
+         this.file = file;
+         this.size = size;
+         this.first = first;
+         this.last = last;
+         this.times = times;
+         this.offsets = offsets;
+         this.indexed = indexed;
+         this.count = count;
+      }
+
+      /**
+       * This segment with one more event
+       */
+      Segment added(long time, long offset, int length) {
+         long[] t = times;
+         long[] o = offsets;
+         int n = indexed;
+         if (count % TIME_INDEX_INTERVAL == 0) {
+            if (n == t.length) {
+               t = Arrays.copyOf(t, n * 2);
+               o = Arrays.copyOf(o, n * 2);
+            }
+            t[n] = time;
+            o[n] = offset;
+            n++;
+         }
+         return new Segment(id, file, Math.max(size, offset + length), Math.min(first, time), Math.max(last, time),
+               t, o, n, count + 1);
+      }
+
+      Segment sized(long size) {
+         return new Segment(id, file, size, first, last, times, offsets, indexed, count);
+      }
+
+      /**
+       * Where to start reading for events at or after the given time
+       */
+      long offsetFor(long time) {
+         int low = 0;
+         int high = indexed - 1;
+         int found = -1;
+         while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+               found = mid;
+               low = mid + 1;
+            } else {
+               high = mid - 1;
+            }
+         }
+         return found >= 0 ? offsets[found] : 0;
+      }
+   }
+
+   /** position of one event, for the per test index */
+   private static final class Position {
+      final long segment;
+      final File file;
+      final long offset;
+      final int length;
+
+      Position(Segment segment, long offset, int length) {
+         this.segment = segment.id;
+         this.file = segment.file;
+         this.offset = offset;
+         this.length = length;
+      }
+   }
+
+   private File dir;
+   private final long maxSegmentBytes;
+   private final int maxSegments;
+   private final long maxAge;
+
+   /** held while appending and loading, never while reading */
+   private final Object appendLock = new Object();
+
+   /** oldest first, replaced as a whole */
+   private volatile List<Segment> segments = Collections.emptyList();
+   /** the positions of each test's events, each list replaced as a whole */
+   private final ConcurrentMap<String, List<Position>> byTest = new ConcurrentHashMap<String, List<Position>>();
+   private OutputStream out;
+   private long lastTime;
+   private volatile boolean loaded;
+
+   public QuarantineAuditLog() {
+      this(null, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS, DEFAULT_MAX_AGE);
+   }
+
+   QuarantineAuditLog(File dir, long maxSegmentBytes, int maxSegments, long maxAge) {
+      this.dir = dir;
+      this.maxSegmentBytes = maxSegmentBytes;
+      this.maxSegments = maxSegments;
+      this.maxAge = maxAge;
+   }
+
+   public static QuarantineAuditLog get() {
+      return Jenkins.getInstance().getExtensionList(QuarantineAuditLog.class).get(0);
+   }
+
+   /**
+    * Shorthand for logging an event that happens now. Failures are logged,
+    * never passed on, an audit log problem shouldn't break quarantining.
+    */
+   static void record(Type type, String job, String scope, String test, String user, String reason) {
+      record(type, job, scope, test, user, reason, 0);
+   }
+
+   static void record(Type type, String job, String scope, String test, String user, String reason, long expiry) {
+      try {
+         get().append(new Event(System.currentTimeMillis(), type, job, scope, test, user, reason, expiry));
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed writing quarantine audit log", e);
+      }
+   }
+
+   /**
+    * Appends an event. Events are kept in time order, one dated before the
+    * last logged event is logged at the time of that event instead.
+    */
+   public void append(Event event) throws IOException {
+      ensureLoaded();
+      synchronized (appendLock) {
+         if (event.getTime() < lastTime) {
+            event = event.at(lastTime);
+         }
+         List<Segment> current = segments;
+         Segment segment = current.isEmpty() ? null : current.get(current.size() - 1);
+         if (segment == null || segment.size >= maxSegmentBytes) {
+            segment = startSegment(event.getTime());
+         }
+         byte[] line = (event.toJSON().toString() + "\n").getBytes(UTF8);
+         if (out == null) {
+            out = new FileOutputStream(segment.file, true);
+         }
+         out.write(line);
+         out.flush();
+         Segment updated = segment.added(event.getTime(), segment.size, line.length);
+         current = new ArrayList<Segment>(segments);
+         current.set(current.size() - 1, updated);
+         segments = Collections.unmodifiableList(current);
+         List<Position> old = byTest.get(event.getTest());
+         List<Position> positions = new ArrayList<Position>(old != null ? old.size() + 1 : 1);
+         if (old != null) {
+            positions.addAll(old);
+         }
+         positions.add(new Position(updated, segment.size, line.length));
+         byTest.put(event.getTest(), Collections.unmodifiableList(positions));
+         lastTime = event.getTime();
+      }
+   }
+
+   /**
+    * All events of a test, oldest first
+    *
+    * @param job only events of this job or folder, all if null
+    * @param limit the most events to return
+    */
+   public List<Event> forTest(String test, String job, int limit) throws IOException {
+      ensureLoaded();
+      List<Position> positions = byTest.get(test);
+      if (positions == null) {
+         return Collections.emptyList();
+      }
+      List<Segment> current = segments;
+      long oldest = current.isEmpty() ? Long.MAX_VALUE : current.get(0).id;
+      List<Event> events = new ArrayList<Event>();
+      RandomAccessFile file = null;
+      long open = Long.MIN_VALUE;
+      try {
+         for (Position position : positions) {
+            if (position.segment < oldest) {
+               continue;
+            }
+            if (open != position.segment) {
+               if (file != null) {
+                  file.close();
+                  file = null;
+               }
+               open = position.segment;
+               try {
+                  file = new RandomAccessFile(position.file, "r");
+               } catch (FileNotFoundException e) {
+                  // deleted by the retention in the meantime
+                  continue;
+               }
+            }
+            if (file == null) {
+               continue;
+            }
+            byte[] line = new byte[position.length];
+            file.seek(position.offset);
+            file.readFully(line);
+            Event event = parse(new String(line, UTF8).trim());
+            if (event != null && (job == null || event.isWithin(job))) {
+               events.add(event);
+               if (events.size() >= limit) {
+                  break;
+               }
+            }
+         }
+      } finally {
+         if (file != null) {
+            file.close();
+         }
+      }
+      return events;
+   }
+
+   /**
+    * All events between the given times (inclusive), oldest first. Only the
+    * part of a segment that was written when the query started is read.
+    *
+    * @param job only events of this job or folder, all if null
+    * @param limit the most events to return
+    */
+   public List<Event> query(long from, long to, String job, int limit) throws IOException {
+      ensureLoaded();
+      List<Event> events = new ArrayList<Event>();
+      for (Segment segment : segments) {
+         if (segment.count == 0 || segment.last < from || segment.first > to) {
+            continue;
+         }
+         FileInputStream input;
+         try {
+            input = new FileInputStream(segment.file);
+         } catch (FileNotFoundException e) {
+            // deleted by the retention in the meantime
+            continue;
+         }
+         try {
+            long start = segment.offsetFor(from);
+            input.getChannel().position(start);
+            BufferedReader reader = new BufferedReader(
+                  new InputStreamReader(new BoundedInputStream(input, segment.size - start), UTF8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+               Event event = parse(line);
+               if (event == null || event.getTime() < from) {
+                  continue;
+               }
+               if (event.getTime() > to) {
+                  return events;
+               }
+               if (job == null || event.isWithin(job)) {
+                  events.add(event);
+                  if (events.size() >= limit) {
+                     return events;
+                  }
+               }
+            }
+         } finally {
+            input.close();
+         }
+      }
+      return events;
+   }
+
+   int getSegmentCount() {
+      ensureLoaded();
+      return segments.size();
+   }
+
+   private Event parse(String line) {
+      try {
+         return Event.fromJSON(line);
+      } catch (JSONException e) {
+         LOGGER.log(Level.FINE, "skipping malformed audit log line " + line, e);
+         return null;
+      } catch (IllegalArgumentException e) {
+         LOGGER.log(Level.FINE, "skipping audit log line of unknown type " + line, e);
+         return null;
+      }
+   }
+
+   private Segment startSegment(long time) throws IOException {
+      if (out != null) {
+         out.close();
+         out = null;
+      }
+      List<Segment> current = new ArrayList<Segment>(segments);
+      long id = time;
+      if (!current.isEmpty()) {
+         id = Math.max(id, current.get(current.size() - 1).id + 1);
+      }
+      Segment segment = new Segment(id, new File(dir, PREFIX + id + SUFFIX));
+      current.add(segment);
+      applyRetention(current, time);
+      segments = Collections.unmodifiableList(current);
+      return segment;
+   }
+
+   /**
+    * Deletes the oldest segments until there are few enough and none of them
+    * is too old. The current segment is always kept.
+    */
+   private void applyRetention(List<Segment> current, long now) {
+      boolean deleted = false;
+      while (current.size() > 1
+            && (current.size() > maxSegments || current.get(0).last < now - maxAge)) {
+         Segment oldest = current.remove(0);
+         deleted = true;
+         if (!oldest.file.delete() && oldest.file.exists()) {
+            LOGGER.warning("failed deleting " + oldest.file);
+         }
+      }
+      if (deleted) {
+         long first = current.get(0).id;
+         for (Map.Entry<String, List<Position>> entry : byTest.entrySet()) {
+            List<Position> kept = new ArrayList<Position>();
+            for (Position position : entry.getValue()) {
+               if (position.segment >= first) {
+                  kept.add(position);
+               }
+            }
+            if (kept.isEmpty()) {
+               byTest.remove(entry.getKey());
+            } else if (kept.size() < entry.getValue().size()) {
+               byTest.put(entry.getKey(), Collections.unmodifiableList(kept));
+            }
+         }
+      }
+   }
+
+   private void ensureLoaded() {
+      if (loaded) {
+         return;
+      }
+      synchronized (appendLock) {
+         if (loaded) {
+            return;
+         }
+         load();
+         loaded = true;
+      }
+   }
+
+   private void load() {
+      if (dir == null) {
+         dir = new File(Jenkins.getInstance().getRootDir(), "quarantine-audit");
+      }
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         LOGGER.warning("failed creating " + dir);
+      }
+      File[] files = dir.listFiles();
+      if (files == null) {
+         return;
+      }
+      List<Segment> found = new ArrayList<Segment>();
+      for (File file : files) {
+         String name = file.getName();
+         if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+            try {
+               found.add(new Segment(Long.parseLong(name.substring(PREFIX.length(),
+                     name.length() - SUFFIX.length())), file));
+            } catch (NumberFormatException e) {
+               LOGGER.warning("ignoring unexpected file " + file);
+            }
+         }
+      }
+      Collections.sort(found, new Comparator<Segment>() {
+         public int compare(Segment a, Segment b) {
+            return Long.compare(a.id, b.id);
+         }
+      });
+      List<Segment> scanned = new ArrayList<Segment>();
+      Map<String, List<Position>> positions = new HashMap<String, List<Position>>();
+      for (Segment segment : found) {
+         try {
+            segment = scan(segment, positions);
+            scanned.add(segment);
+            if (segment.count > 0) {
+               lastTime = Math.max(lastTime, segment.last);
+            }
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed reading " + segment.file, e);
+         }
+      }
+      for (Map.Entry<String, List<Position>> entry : positions.entrySet()) {
+         byTest.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+      }
+      segments = Collections.unmodifiableList(scanned);
+   }
+
+   /**
+    * Indexes the events of a segment. A line cut short by a crash is cut off
+    * so the next event starts on a line of its own.
+    *
+    * @return the segment with its events
+    */
+   private Segment scan(Segment segment, Map<String, List<Position>> positions) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+      try {
+         byte[] buffer = new byte[64 * 1024];
+         ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+         long offset = 0;
+         long lineStart = 0;
+         int read;
+         while ((read = file.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+               if (buffer[i] == '\n') {
+                  byte[] bytes = line.toByteArray();
+                  Event event = parse(new String(bytes, UTF8));
+                  if (event != null) {
+                     segment = segment.added(event.getTime(), lineStart, bytes.length + 1);
+                     List<Position> list = positions.get(event.getTest());
+                     if (list == null) {
+                        list = new ArrayList<Position>(2);
+                        positions.put(event.getTest(), list);
+                     }
+                     list.add(new Position(segment, lineStart, bytes.length + 1));
+                  }
+                  line.reset();
+                  lineStart = offset + i + 1;
+               } else {
+                  line.write(buffer[i]);
+               }
+            }
+            offset += read;
+         }
+         if (lineStart < offset) {
+            LOGGER.warning("dropping incomplete last event of " + segment.file);
+            file.setLength(lineStart);
+         }
+         return segment.sized(lineStart);
+      } finally {
+         file.close();
+      }
+   }
+}
@@ -0,0 +1,237 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Controller wide quarantine settings, shown on the global configuration page.
+ */
+@Extension
+public class QuarantineConfiguration extends GlobalConfiguration {
+
+   /**
+    * How failures of quarantined tests are mailed to their quarantiner
+    */
+   public enum DigestMode {
+      /** one mail per build */
+      OFF,
+      /** collected failures of all builds, once an hour */
+      HOURLY,
+      /** collected failures of all builds, once a day */
+      DAILY
+   }
+
+   private String rules;
+   private boolean globalScopeEnabled;
+   private String defaultBranchNames = "master main";
+   private DigestMode digestMode = DigestMode.OFF;
+   private int staleAfterBuilds;
+   private int staleAfterDays;
+   private boolean pruneStale;
+   private String webhookUrls;
+   private String webhookTemplate;
+   private int webhookBatchSeconds = 30;
+   private int webhookMaxPerMinute = 20;
+
+   private transient volatile QuarantineRuleMatcher matcher;
+
+   public QuarantineConfiguration() {
+      load();
+   }
+
+   public static QuarantineConfiguration get() {
+      return GlobalConfiguration.all().get(QuarantineConfiguration.class);
+   }
+
+   @Override
+   public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+      req.bindJSON(this, json);
+      save();
+      return true;
+   }
+
+   @Override
+   public String getDisplayName() {
+      return Messages.QuarantineConfiguration_DisplayName();
+   }
+
+   public FormValidation doCheckRules(@QueryParameter String value) {
+      String problem = QuarantineRuleMatcher.check(value);
+      return problem != null ? FormValidation.error(problem) : FormValidation.ok();
+   }
+
+   public String getRules() {
+      return rules;
+   }
+
+   @DataBoundSetter
+   public void setRules(String rules) {
+      this.rules = rules;
+      this.matcher = null;
+   }
+
+   public boolean isGlobalScopeEnabled() {
+      return globalScopeEnabled;
+   }
+
+   /**
+    * Whether users may quarantine a test for all jobs of a folder or of the
+    * whole controller, rather than just for the job they are looking at
+    */
+   @DataBoundSetter
+   public void setGlobalScopeEnabled(boolean globalScopeEnabled) {
+      this.globalScopeEnabled = globalScopeEnabled;
+   }
+
+   public String getDefaultBranchNames() {
+      return defaultBranchNames;
+   }
+
+   /**
+    * Names of the branch jobs whose quarantines are copied into a new sibling
+    * job (e.g. a new pull request of a multibranch project), separated by
+    * whitespace or commas
+    */
+   @DataBoundSetter
+   public void setDefaultBranchNames(String defaultBranchNames) {
+      this.defaultBranchNames = defaultBranchNames;
+   }
+
+   List<String> getDefaultBranchNameList() {
+      if (StringUtils.isBlank(defaultBranchNames)) {
+         return Collections.emptyList();
+      }
+      return Arrays.asList(defaultBranchNames.trim().split("[\\s,]+"));
+   }
+
+   public DigestMode getDigestMode() {
+      return digestMode != null ? digestMode : DigestMode.OFF;
+   }
+
+   @DataBoundSetter
+   public void setDigestMode(DigestMode digestMode) {
+      this.digestMode = digestMode;
+   }
+
+   public int getStaleAfterBuilds() {
+      return staleAfterBuilds;
+   }
+
+   /**
+    * A quarantine is stale once its test didn't run in this many builds of
+    * the job, 0 disables this
+    */
+   @DataBoundSetter
+   public void setStaleAfterBuilds(int staleAfterBuilds) {
+      this.staleAfterBuilds = staleAfterBuilds;
+   }
+
+   public int getStaleAfterDays() {
+      return staleAfterDays;
+   }
+
+   /**
+    * A quarantine is stale once its test didn't run for this many days, 0
+    * disables this
+    */
+   @DataBoundSetter
+   public void setStaleAfterDays(int staleAfterDays) {
+      this.staleAfterDays = staleAfterDays;
+   }
+
+   public boolean isPruneStale() {
+      return pruneStale;
+   }
+
+   /**
+    * Whether stale quarantines are dropped rather than only listed
+    */
+   @DataBoundSetter
+   public void setPruneStale(boolean pruneStale) {
+      this.pruneStale = pruneStale;
+   }
+
+   public String getWebhookUrls() {
+      return webhookUrls;
+   }
+
+   /**
+    * URLs that failures of quarantined tests are posted to, separated by
+    * whitespace
+    */
+   @DataBoundSetter
+   public void setWebhookUrls(String webhookUrls) {
+      this.webhookUrls = webhookUrls;
+   }
+
+   List<String> getWebhookUrlList() {
+      if (StringUtils.isBlank(webhookUrls)) {
+         return Collections.emptyList();
+      }
+      return Arrays.asList(webhookUrls.trim().split("\\s+"));
+   }
+
+   public String getWebhookTemplate() {
+      return webhookTemplate;
+   }
+
+   /**
+    * The JSON posted to the webhooks, {@link WebhookNotifier#DEFAULT_TEMPLATE}
+    * if empty
+    */
+   @DataBoundSetter
+   public void setWebhookTemplate(String webhookTemplate) {
+      this.webhookTemplate = webhookTemplate;
+   }
+
+   String getWebhookTemplateOrDefault() {
+      return StringUtils.isBlank(webhookTemplate) ? WebhookNotifier.DEFAULT_TEMPLATE : webhookTemplate;
+   }
+
+   public int getWebhookBatchSeconds() {
+      return webhookBatchSeconds;
+   }
+
+   /**
+    * How long failures are collected before they are posted together
+    */
+   @DataBoundSetter
+   public void setWebhookBatchSeconds(int webhookBatchSeconds) {
+      this.webhookBatchSeconds = Math.max(0, webhookBatchSeconds);
+   }
+
+   public int getWebhookMaxPerMinute() {
+      return webhookMaxPerMinute;
+   }
+
+   /**
+    * Posts per minute and webhook at most, 0 for no limit
+    */
+   @DataBoundSetter
+   public void setWebhookMaxPerMinute(int webhookMaxPerMinute) {
+      this.webhookMaxPerMinute = Math.max(0, webhookMaxPerMinute);
+   }
+
+   /**
+    * The compiled global rules, applied to every job that allows quarantining.
+    */
+   QuarantineRuleMatcher getMatcher() {
+      QuarantineRuleMatcher m = matcher;
+      if (m == null) {
+         m = QuarantineRuleMatcher.compile(rules);
+         matcher = m;
+      }
+      return m;
+   }
+}
@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The compact form the quarantines of a build are kept in within build.xml:
+ * the fields of each {@link QuarantineTestAction} one after the other,
+ * strings prefixed with their length, base64 encoded as a whole. Reading it
+ * back is a single pass over a byte array instead of an XML element (and a
+ * reflective field lookup) per field.
+ *
+ * The format has a version so fields can be added later; older versions must
+ * stay readable.
+ */
+final class QuarantineDataFormat {
+
+   /** 2 added the failure signatures */
+   static final int VERSION = 2;
+
+   private static final long NO_DATE = Long.MIN_VALUE;
+
+   private QuarantineDataFormat() {
+   }
+
+   static String encode(Collection<QuarantineTestAction> actions) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + actions.size() * 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(actions.size());
+      for (QuarantineTestAction action : actions) {
+         action.write(out);
+      }
+      out.flush();
+      return Base64.getEncoder().encodeToString(bytes.toByteArray());
+   }
+
+   static List<QuarantineTestAction> decode(Data owner, String state, int version) throws IOException {
+      if (version < 1 || version > VERSION) {
+         throw new IOException("unsupported quarantine data format " + version);
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(state)));
+      int count = in.readInt();
+      List<QuarantineTestAction> actions = new ArrayList<QuarantineTestAction>(count);
+      for (int i = 0; i < count; i++) {
+         actions.add(QuarantineTestAction.read(owner, in, version));
+      }
+      return actions;
+   }
+
+   static void writeString(DataOutputStream out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   static void writeDate(DataOutputStream out, Date value) throws IOException {
+      out.writeLong(value != null ? value.getTime() : NO_DATE);
+   }
+
+   static Date readDate(DataInputStream in) throws IOException {
+      long time = in.readLong();
+      return time != NO_DATE ? new Date(time) : null;
+   }
+}
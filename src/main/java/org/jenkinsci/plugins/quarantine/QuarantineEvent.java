@@ -0,0 +1,86 @@
+package org.jenkinsci.plugins.quarantine;
+
+import java.util.Date;
+
+/**
+ * Something that happened to a quarantine, as delivered to
+ * {@link QuarantineListener}s.
+ */
+public final class QuarantineEvent {
+
+   public enum Type {
+      QUARANTINED,
+      RELEASED,
+      AUTO_RELEASED,
+      EXPIRED,
+      /** a quarantined test failed in a build, in a way it hadn't before */
+      QUARANTINED_TEST_FAILED
+   }
+
+   private final Type type;
+   private final long time;
+   private final String job;
+   private final int build;
+   private final String testObjectId;
+   private final String testName;
+   private final String user;
+   private final String reason;
+
+   /**
+    * @param build    the build the change was made in, 0 if none
+    * @param testName the full name of the test, null if not at hand
+    * @param user     who changed the quarantine, or the quarantiner of a
+    *                 failed test
+    */
+   public QuarantineEvent(Type type, String job, int build, String testObjectId, String testName, String user,
+         String reason) {
+      this.type = type;
+      this.time = System.currentTimeMillis();
+      this.job = job;
+      this.build = build;
+      this.testObjectId = testObjectId;
+      this.testName = testName;
+      this.user = user;
+      this.reason = reason;
+   }
+
+   public Type getType() {
+      return type;
+   }
+
+   public Date getTime() {
+      return new Date(time);
+   }
+
+   /**
+    * Full name of the job
+    */
+   public String getJob() {
+      return job;
+   }
+
+   public int getBuild() {
+      return build;
+   }
+
+   public String getTestObjectId() {
+      return testObjectId;
+   }
+
+   public String getTestName() {
+      return testName;
+   }
+
+   public String getUser() {
+      return user;
+   }
+
+   public String getReason() {
+      return reason;
+   }
+
+   @Override
+   public String toString() {
+      return "QuarantineEvent(" + type + "," + job + "#" + build + "," + testObjectId + ",user=" + user + ")";
+   }
+}
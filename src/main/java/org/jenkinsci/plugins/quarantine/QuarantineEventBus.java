@@ -0,0 +1,186 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Hands {@link QuarantineEvent}s to the {@link QuarantineListener}s. Events
+ * are put in an {@link EventRing} by whoever publishes them, which is cheap
+ * and never blocks, and delivered by a task on the {@link Timer} of Jenkins
+ * that is submitted when events come in and ends when the ring is empty. At
+ * most one such task runs at a time, it is the only consumer of the ring.
+ *
+ * When listeners fall behind and the ring is full, new events are dropped
+ * and counted rather than holding up builds; {@link #toJSON()} tells how many.
+ */
+@Extension
+public class QuarantineEventBus {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineEventBus.class.getName());
+
+   static final int CAPACITY = 4096;
+
+   /** events delivered by one task before it makes way for other timer tasks */
+   private static final int BATCH = 1000;
+
+   private final EventRing<QuarantineEvent> ring;
+
+   private final AtomicLong published = new AtomicLong();
+   private final AtomicLong delivered = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+
+   /** whether a delivery task is submitted or running */
+   private final AtomicBoolean delivering = new AtomicBoolean();
+
+   private final Runnable delivery = new Runnable() {
+      public void run() {
+         deliver();
+      }
+   };
+
+   public QuarantineEventBus() {
+      this(CAPACITY);
+   }
+
+   QuarantineEventBus(int capacity) {
+      ring = new EventRing<QuarantineEvent>(capacity);
+   }
+
+   public static QuarantineEventBus get() {
+      return Jenkins.getInstance().getExtensionList(QuarantineEventBus.class).get(0);
+   }
+
+   /**
+    * Publishes an event to the listeners of this Jenkins.
+    */
+   static void publish(QuarantineEvent event) {
+      get().offer(event);
+   }
+
+   /**
+    * @return false if the event was dropped because listeners are behind
+    */
+   boolean offer(QuarantineEvent event) {
+      if (!ring.offer(event)) {
+         long count = dropped.incrementAndGet();
+         if (count == 1 || count % 1000 == 0) {
+            LOGGER.warning("quarantine listeners are behind, dropped " + count + " events so far");
+         }
+         return false;
+      }
+      published.incrementAndGet();
+      startDelivery();
+      return true;
+   }
+
+   private void startDelivery() {
+      if (delivering.compareAndSet(false, true)) {
+         try {
+            Timer.get().submit(delivery);
+         } catch (RejectedExecutionException e) {
+            // shutting down
+            delivering.set(false);
+            LOGGER.log(Level.FINE, "not delivering quarantine events", e);
+         }
+      }
+   }
+
+   private void deliver() {
+      try {
+         for (int i = 0; i < BATCH; i++) {
+            QuarantineEvent event = ring.poll();
+            if (event == null) {
+               break;
+            }
+            dispatch(event);
+         }
+      } finally {
+         delivering.set(false);
+         // more events, either left over or come in just before we were done
+         if (ring.size() > 0) {
+            startDelivery();
+         }
+      }
+   }
+
+   void dispatch(QuarantineEvent event) {
+      try {
+         for (QuarantineListener listener : listeners()) {
+            try {
+               listener.onEvent(event);
+            } catch (Throwable e) {
+               // an Error of one listener shouldn't keep the others from being told
+               failures.incrementAndGet();
+               LOGGER.log(Level.WARNING, listener + " failed handling " + event, e);
+            }
+         }
+      } catch (RuntimeException e) {
+         // e.g. while shutting down
+         failures.incrementAndGet();
+         LOGGER.log(Level.WARNING, "failed delivering " + event, e);
+      }
+      delivered.incrementAndGet();
+   }
+
+   Iterable<QuarantineListener> listeners() {
+      return QuarantineListener.all();
+   }
+
+   /**
+    * Waits until all events published so far were delivered, for tests.
+    *
+    * @return false if that didn't happen in time
+    */
+   boolean awaitDelivery(long timeoutMillis) throws InterruptedException {
+      long target = published.get();
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (delivered.get() < target) {
+         if (System.currentTimeMillis() > deadline) {
+            return false;
+         }
+         Thread.sleep(10);
+      }
+      return true;
+   }
+
+   public long getPublished() {
+      return published.get();
+   }
+
+   public long getDelivered() {
+      return delivered.get();
+   }
+
+   public long getDropped() {
+      return dropped.get();
+   }
+
+   public long getFailures() {
+      return failures.get();
+   }
+
+   public int getBacklog() {
+      return ring.size();
+   }
+
+   JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      json.put("capacity", ring.capacity());
+      json.put("backlog", getBacklog());
+      json.put("published", getPublished());
+      json.put("delivered", getDelivered());
+      json.put("dropped", getDropped());
+      json.put("failures", getFailures());
+      return json;
+   }
+}
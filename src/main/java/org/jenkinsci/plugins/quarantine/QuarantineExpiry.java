@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ends quarantines that were given a time to live. Deadlines are kept in a
+ * {@link TimerWheel} that is filled from the {@link QuarantineIndex} and the
+ * {@link GlobalQuarantine} at startup and whenever a quarantine with an expiry
+ * is published, so expiring never scans builds.
+ *
+ * Expiry is also checked while recording, so a build never relies on this
+ * having run in time.
+ */
+@Extension
+public class QuarantineExpiry extends PeriodicWork {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineExpiry.class.getName());
+
+   private static final long TICK = TimeUnit.MINUTES.toMillis(1);
+
+   /** 4096 one minute ticks, a bit less than three days per rotation */
+   private final TimerWheel<Key> wheel = new TimerWheel<Key>(TICK, 4096, System.currentTimeMillis());
+
+   /**
+    * What to expire: either a test of a job, or a test in a folder/global
+    * scope.
+    */
+   static final class Key {
+      final String job;
+      final String scope;
+      final String testObjectId;
+      final long expiry;
+
+      Key(String job, String scope, String testObjectId, long expiry) {
+         this.job = job;
+         this.scope = scope;
+         this.testObjectId = testObjectId;
+         this.expiry = expiry;
+      }
+   }
+
+   public static QuarantineExpiry get() {
+      return Jenkins.getInstance().getExtensionList(PeriodicWork.class).get(QuarantineExpiry.class);
+   }
+
+   @Initializer(after = InitMilestone.JOB_LOADED)
+   public static void init() {
+      QuarantineIndex.get().load();
+      get().rebuild();
+      QuarantineIndex.get().bootstrap();
+   }
+
+   @Override
+   public long getRecurrencePeriod() {
+      return TICK;
+   }
+
+   void schedule(String job, String scope, QuarantineRecord record) {
+      wheel.schedule(new Key(job, scope, record.getTestObjectId(), record.getExpiryMillis()),
+            record.getExpiryMillis());
+   }
+
+   /**
+    * Fills the wheel from the persisted quarantines.
+    */
+   void rebuild() {
+      for (Map.Entry<String, QuarantineIndex.Snapshot> entry : QuarantineIndex.get().getAll().entrySet()) {
+         for (QuarantineRecord record : entry.getValue().getRecords().values()) {
+            if (record.getExpiryMillis() != 0) {
+               schedule(entry.getKey(), null, record);
+            }
+         }
+      }
+      for (Map.Entry<String, Map<String, QuarantineRecord>> entry : GlobalQuarantine.get().getAll().entrySet()) {
+         for (QuarantineRecord record : entry.getValue().values()) {
+            if (record.getExpiryMillis() != 0) {
+               schedule(null, entry.getKey(), record);
+            }
+         }
+      }
+   }
+
+   @Override
+   protected void doRun() throws Exception {
+      for (Key key : wheel.advance(System.currentTimeMillis())) {
+         try {
+            expire(key);
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed expiring quarantine of " + key.testObjectId, e);
+         }
+      }
+   }
+
+   private void expire(Key key) throws IOException {
+      if (key.scope != null) {
+         GlobalQuarantine global = GlobalQuarantine.get();
+         QuarantineRecord record = global.get(key.scope, key.testObjectId);
+         if (record != null && record.getExpiryMillis() == key.expiry && global.remove(key.scope, record)) {
+            QuarantineAuditLog.record(QuarantineAuditLog.Type.EXPIRY, null, key.scope, key.testObjectId, null, null);
+         }
+         return;
+      }
+
+      QuarantineIndex index = QuarantineIndex.get();
+      QuarantineIndex.Snapshot snapshot = index.get(key.job);
+      QuarantineRecord record = snapshot != null ? snapshot.getRecords().get(key.testObjectId) : null;
+      if (record == null || record.getExpiryMillis() != key.expiry) {
+         // released or quarantined again since
+         return;
+      }
+
+      Job<?, ?> job = Jenkins.getInstance().getItemByFullName(key.job, Job.class);
+      Run<?, ?> build = job != null ? job.getLastCompletedBuild() : null;
+      Data data = build != null ? Data.forTest(build, key.testObjectId) : null;
+      if (data != null && data.expire(key.testObjectId)) {
+         data.save();
+      } else {
+         // the test is not part of the latest build, dropping it from the
+         // index is all there is to do
+         index.removeRecord(key.job, key.testObjectId);
+         QuarantineAuditLog.record(QuarantineAuditLog.Type.EXPIRY, key.job, null, key.testObjectId, null, null);
+         QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.EXPIRED, key.job, 0,
+               key.testObjectId, null, record.getQuarantinedBy(), null));
+      }
+   }
+
+   int getScheduledCount() {
+      return wheel.size();
+   }
+}
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.quarantine;
+
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Writes quarantines one row at a time, as CSV or as newline delimited JSON,
+ * so an export never holds more than the current row.
+ */
+abstract class QuarantineExport {
+
+   static final String[] COLUMNS = {"job", "test", "status", "streak", "quarantinedBy", "date", "reason"};
+
+   protected Writer out;
+
+   private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+   QuarantineExport() {
+      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+   }
+
+   /**
+    * @return the writer for the given format, null if there is no such
+    *         format
+    */
+   static QuarantineExport create(String format) {
+      if ("csv".equals(format)) {
+         return new Csv();
+      }
+      if ("ndjson".equals(format)) {
+         return new NdJson();
+      }
+      return null;
+   }
+
+   abstract String getContentType();
+
+   abstract String getExtension();
+
+   /**
+    * Starts writing to the given writer, e.g. with a header
+    */
+   void begin(Writer out) throws IOException {
+      this.out = out;
+   }
+
+   /**
+    * @param last the test in the latest summarized build of the job, null
+    *             if it has no outcome there
+    */
+   void write(String job, QuarantineRecord record, QuarantineSummary.Entry last) throws IOException {
+      writeRow(job, record.getTestObjectId(), QuarantineSummary.getOutcome(last), record.getPassStreak(),
+            record.getQuarantinedBy(), dateFormat.format(record.getDate()), record.getReason());
+   }
+
+   abstract void writeRow(String job, String test, String status, int streak, String quarantinedBy, String date,
+         String reason) throws IOException;
+
+   static final class Csv extends QuarantineExport {
+
+      @Override
+      String getContentType() {
+         return "text/csv;charset=UTF-8";
+      }
+
+      @Override
+      String getExtension() {
+         return "csv";
+      }
+
+      @Override
+      void begin(Writer out) throws IOException {
+         super.begin(out);
+         for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+               out.write(',');
+            }
+            out.write(COLUMNS[i]);
+         }
+         out.write("\r\n");
+      }
+
+      @Override
+      void writeRow(String job, String test, String status, int streak, String quarantinedBy, String date,
+            String reason) throws IOException {
+         field(job);
+         out.write(',');
+         field(test);
+         out.write(',');
+         out.write(status);
+         out.write(',');
+         out.write(Integer.toString(streak));
+         out.write(',');
+         field(quarantinedBy);
+         out.write(',');
+         out.write(date);
+         out.write(',');
+         field(reason);
+         out.write("\r\n");
+      }
+
+      /**
+       * Quotes a value if it contains anything special to CSV (RFC 4180)
+       */
+      private void field(String value) throws IOException {
+         if (value == null) {
+            return;
+         }
+         boolean quote = false;
+         for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+         }
+         if (!quote) {
+            out.write(value);
+            return;
+         }
+         out.write('"');
+         out.write(value.replace("\"", "\"\""));
+         out.write('"');
+      }
+   }
+
+   static final class NdJson extends QuarantineExport {
+
+      @Override
+      String getContentType() {
+         return "application/x-ndjson;charset=UTF-8";
+      }
+
+      @Override
+      String getExtension() {
+         return "ndjson";
+      }
+
+      @Override
+      void writeRow(String job, String test, String status, int streak, String quarantinedBy, String date,
+            String reason) throws IOException {
+         JSONObject row = new JSONObject();
+         row.put("job", job);
+         row.put("test", test);
+         row.put("status", status);
+         row.put("streak", streak);
+         row.put("quarantinedBy", quarantinedBy);
+         row.put("date", date);
+         if (reason != null) {
+            row.put("reason", reason);
+         }
+         row.write(out);
+         out.write('\n');
+      }
+   }
+}
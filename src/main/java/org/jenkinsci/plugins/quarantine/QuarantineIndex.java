@@ -0,0 +1,576 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.junit.TestResultAction;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The quarantines in effect for each job, as of its latest recorded build.
+ * Only quarantines owned by the job are kept, rule and folder/global
+ * quarantines are looked up elsewhere. Quarantines of tests that didn't run
+ * in the latest build are carried over from the snapshot before, with the
+ * build they were last seen in, until {@link StaleQuarantineDetector} prunes
+ * them.
+ *
+ * A job's entry is an immutable {@link Snapshot} that is replaced as a whole
+ * whenever it changes, so readers can hand out and keep the map without
+ * copying or locking.
+ *
+ * Next to that, the quarantines are indexed by who put them in place, so the
+ * quarantines of a user are found without going through every job.
+ *
+ * The index is written to a {@link QuarantineIndexFile} shortly after it
+ * changes. At startup that file is read and the quarantines and releases
+ * logged in the {@link QuarantineAuditLog} since it was written are replayed,
+ * so the index is current without reading any builds. The first time the
+ * plugin starts, the jobs nothing was recorded for yet are indexed from their
+ * latest builds in the background, see {@link #bootstrap()}. Deleted and
+ * renamed jobs are followed by {@link JobListener}.
+ */
+@Extension
+public class QuarantineIndex {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineIndex.class.getName());
+
+   /** how long to wait for more changes before writing the index to disk */
+   private static final long SAVE_DELAY_SECONDS = 10;
+
+   /**
+    * How far before a snapshot the audit log is replayed. A change is logged
+    * while a build records its results and reaches the index when it is done,
+    * so the latest logged changes may not be in the snapshot yet. Replaying
+    * a change that is in it already does no harm.
+    */
+   static final long JOURNAL_OVERLAP = TimeUnit.MINUTES.toMillis(10);
+
+   /** jobs whose latest build is read in one go while bootstrapping */
+   static final int BOOTSTRAP_BATCH = 10;
+   /** pause between two batches, so bootstrapping doesn't hog the disk */
+   private static final long BOOTSTRAP_PAUSE_MILLIS = 1000;
+
+   private final ConcurrentMap<String, Snapshot> jobs = new ConcurrentHashMap<String, Snapshot>();
+
+   /**
+    * The quarantines of each user as job full name and test id, separated
+    * like a selection of the report. Changed only while holding its lock.
+    */
+   private final ConcurrentMap<String, Set<String>> byUser = new ConcurrentHashMap<String, Set<String>>();
+
+   private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+   public static QuarantineIndex get() {
+      return Jenkins.getInstance().getExtensionList(QuarantineIndex.class).get(0);
+   }
+
+   /**
+    * The quarantines of one job as of one of its builds.
+    */
+   public static final class Snapshot {
+      private final int build;
+      private final Map<String, QuarantineRecord> records;
+
+      Snapshot(int build, Map<String, QuarantineRecord> records) {
+         this.build = build;
+         this.records = Collections.unmodifiableMap(records);
+      }
+
+      public int getBuild() {
+         return build;
+      }
+
+      public Map<String, QuarantineRecord> getRecords() {
+         return records;
+      }
+   }
+
+   /**
+    * @return the snapshot of the given job, or null if it isn't indexed
+    */
+   public Snapshot get(String jobFullName) {
+      return jobs.get(jobFullName);
+   }
+
+   /**
+    * Replaces the snapshot of a job, unless a newer build has already been
+    * published.
+    *
+    * @param present the tests of the build that have quarantine state, i.e.
+    *                that ran in it; quarantines of other tests are carried
+    *                over
+    */
+   void publish(Job<?, ?> job, int build, Map<String, QuarantineRecord> records, Set<String> present) {
+      String key = job.getFullName();
+      Snapshot snapshot;
+      Snapshot old;
+      while (true) {
+         old = jobs.get(key);
+         snapshot = new Snapshot(build, carryOver(old, records, present));
+         if (old == null) {
+            if (jobs.putIfAbsent(key, snapshot) == null) {
+               break;
+            }
+         } else if (old.build > build) {
+            return;
+         } else if (jobs.replace(key, old, snapshot)) {
+            break;
+         }
+      }
+      changed(key, old, snapshot);
+   }
+
+   private static Map<String, QuarantineRecord> carryOver(Snapshot old, Map<String, QuarantineRecord> records,
+         Set<String> present) {
+      Map<String, QuarantineRecord> result = new HashMap<String, QuarantineRecord>(records);
+      if (old != null) {
+         for (QuarantineRecord record : old.records.values()) {
+            String id = record.getTestObjectId();
+            if (!result.containsKey(id) && !present.contains(id)) {
+               result.put(id, record);
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Drops a single quarantine from a job's snapshot, e.g. because it expired
+    * but the test is no longer part of the latest build.
+    */
+   void removeRecord(String jobFullName, String testObjectId) {
+      while (true) {
+         Snapshot old = jobs.get(jobFullName);
+         if (old == null || !old.records.containsKey(testObjectId)) {
+            return;
+         }
+         Map<String, QuarantineRecord> records = new HashMap<String, QuarantineRecord>(old.records);
+         records.remove(testObjectId);
+         Snapshot snapshot = new Snapshot(old.build, records);
+         if (jobs.replace(jobFullName, old, snapshot)) {
+            changed(jobFullName, old, snapshot);
+            return;
+         }
+      }
+   }
+
+   /**
+    * Drops the given quarantine from a job's snapshot, unless it changed in
+    * the meantime.
+    *
+    * @return whether it was dropped
+    */
+   boolean removeRecord(String jobFullName, QuarantineRecord record) {
+      while (true) {
+         Snapshot old = jobs.get(jobFullName);
+         if (old == null || old.records.get(record.getTestObjectId()) != record) {
+            return false;
+         }
+         Map<String, QuarantineRecord> records = new HashMap<String, QuarantineRecord>(old.records);
+         records.remove(record.getTestObjectId());
+         Snapshot snapshot = new Snapshot(old.build, records);
+         if (jobs.replace(jobFullName, old, snapshot)) {
+            changed(jobFullName, old, snapshot);
+            return true;
+         }
+      }
+   }
+
+   void remove(String jobFullName) {
+      Snapshot old = jobs.remove(jobFullName);
+      if (old != null) {
+         indexUsers(jobFullName, old);
+         scheduleSave();
+      }
+   }
+
+   /**
+    * Drops the jobs inside a deleted folder
+    */
+   void removeAll(String folderFullName) {
+      String prefix = folderFullName + "/";
+      for (String key : new ArrayList<String>(jobs.keySet())) {
+         if (key.startsWith(prefix)) {
+            remove(key);
+         }
+      }
+   }
+
+   /**
+    * Moves the snapshot of a renamed job, unless a build has been recorded
+    * under the new name already.
+    */
+   void rename(String oldFullName, String newFullName) {
+      Snapshot snapshot = jobs.remove(oldFullName);
+      if (snapshot == null) {
+         return;
+      }
+      indexUsers(oldFullName, snapshot);
+      if (jobs.putIfAbsent(newFullName, snapshot) == null) {
+         // expiries are scheduled by job name too
+         changed(newFullName, null, snapshot);
+      } else {
+         scheduleSave();
+      }
+   }
+
+   /**
+    * All snapshots, by job full name
+    */
+   Map<String, Snapshot> getAll() {
+      return Collections.unmodifiableMap(jobs);
+   }
+
+   /**
+    * The quarantines the given user put in place, by job full name
+    */
+   public SortedMap<String, List<QuarantineRecord>> getByUser(String userId) {
+      SortedMap<String, List<QuarantineRecord>> result = new TreeMap<String, List<QuarantineRecord>>();
+      Set<String> keys = userId != null ? byUser.get(userId) : null;
+      if (keys == null) {
+         return result;
+      }
+      for (String key : keys) {
+         int separator = key.indexOf(QuarantinedTestsReport.SELECTION_SEPARATOR);
+         String job = key.substring(0, separator);
+         Snapshot snapshot = jobs.get(job);
+         QuarantineRecord record = snapshot != null ? snapshot.records.get(key.substring(separator + 1)) : null;
+         // the index may lag behind the snapshots for a moment
+         if (record == null || !userId.equals(record.getQuarantinedBy())) {
+            continue;
+         }
+         List<QuarantineRecord> records = result.get(job);
+         if (records == null) {
+            records = new ArrayList<QuarantineRecord>();
+            result.put(job, records);
+         }
+         records.add(record);
+      }
+      for (List<QuarantineRecord> records : result.values()) {
+         Collections.sort(records, new Comparator<QuarantineRecord>() {
+            public int compare(QuarantineRecord a, QuarantineRecord b) {
+               return a.getTestObjectId().compareTo(b.getTestObjectId());
+            }
+         });
+      }
+      return result;
+   }
+
+   /**
+    * Brings the user index in line with the current snapshot of a job after
+    * it replaced <code>old</code>. Reads the current snapshot under the lock,
+    * so changes indexed out of order still end up right.
+    */
+   private void indexUsers(String jobFullName, Snapshot old) {
+      synchronized (byUser) {
+         Snapshot current = jobs.get(jobFullName);
+         if (old != null) {
+            for (QuarantineRecord record : old.records.values()) {
+               QuarantineRecord now = current != null ? current.records.get(record.getTestObjectId()) : null;
+               if (now == null || !StringUtils.equals(now.getQuarantinedBy(), record.getQuarantinedBy())) {
+                  unindexUser(record.getQuarantinedBy(), jobFullName, record.getTestObjectId());
+               }
+            }
+         }
+         if (current != null) {
+            for (QuarantineRecord record : current.records.values()) {
+               if (record.getQuarantinedBy() == null) {
+                  continue;
+               }
+               Set<String> keys = byUser.get(record.getQuarantinedBy());
+               if (keys == null) {
+                  keys = ConcurrentHashMap.newKeySet();
+                  byUser.put(record.getQuarantinedBy(), keys);
+               }
+               keys.add(jobFullName + QuarantinedTestsReport.SELECTION_SEPARATOR + record.getTestObjectId());
+            }
+         }
+      }
+   }
+
+   private void unindexUser(String userId, String jobFullName, String testObjectId) {
+      Set<String> keys = userId != null ? byUser.get(userId) : null;
+      if (keys != null) {
+         keys.remove(jobFullName + QuarantinedTestsReport.SELECTION_SEPARATOR + testObjectId);
+         if (keys.isEmpty()) {
+            byUser.remove(userId);
+         }
+      }
+   }
+
+   private void changed(String jobFullName, Snapshot old, Snapshot snapshot) {
+      indexUsers(jobFullName, old);
+      QuarantineExpiry expiry = QuarantineExpiry.get();
+      for (QuarantineRecord record : snapshot.records.values()) {
+         if (record.getExpiryMillis() == 0) {
+            continue;
+         }
+         QuarantineRecord previous = old != null ? old.records.get(record.getTestObjectId()) : null;
+         if (previous == null || previous.getExpiryMillis() != record.getExpiryMillis()) {
+            expiry.schedule(jobFullName, null, record);
+         }
+      }
+      scheduleSave();
+   }
+
+   private File getFile() {
+      return new File(Jenkins.getInstance().getRootDir(), QuarantineIndexFile.FILE_NAME);
+   }
+
+   private void scheduleSave() {
+      if (saveScheduled.compareAndSet(false, true)) {
+         Timer.get().schedule(new Runnable() {
+            public void run() {
+               saveScheduled.set(false);
+               save();
+            }
+         }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+      }
+   }
+
+   synchronized void save() {
+      // taken before reading the snapshots, changes logged from now on may
+      // or may not make it into the file
+      long journalTime = System.currentTimeMillis();
+      try {
+         QuarantineIndexFile.write(getFile(), journalTime, new HashMap<String, Snapshot>(jobs));
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed saving quarantine index", e);
+      }
+   }
+
+   /**
+    * Reads the index written before the last shutdown and replays the changes
+    * logged after it. Entries recorded since startup win over the stored
+    * ones.
+    */
+   synchronized void load() {
+      QuarantineIndexFile.Content content = QuarantineIndexFile.read(getFile());
+      if (content == null) {
+         // nothing stored yet, bootstrap() reads the latest builds
+         return;
+      }
+      int replayed = replay(content, content.journalTime - JOURNAL_OVERLAP);
+      for (Map.Entry<String, Map<String, QuarantineRecord>> entry : content.records.entrySet()) {
+         Integer build = content.builds.get(entry.getKey());
+         jobs.putIfAbsent(entry.getKey(), new Snapshot(build != null ? build : 0, entry.getValue()));
+         indexUsers(entry.getKey(), null);
+      }
+      LOGGER.fine("loaded the quarantines of " + content.records.size() + " jobs, replayed " + replayed
+            + " logged changes");
+   }
+
+   /**
+    * Applies the quarantines and releases of jobs logged since the given time
+    * to the loaded content, expiries included.
+    *
+    * @return the number of changes applied
+    */
+   static int replay(QuarantineIndexFile.Content content, long from) {
+      List<QuarantineAuditLog.Event> events;
+      try {
+         events = QuarantineAuditLog.get().query(from, Long.MAX_VALUE, null, Integer.MAX_VALUE);
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed replaying the quarantine audit log", e);
+         return 0;
+      }
+      int applied = 0;
+      for (QuarantineAuditLog.Event event : events) {
+         // folder and global quarantines are not part of the index
+         if (event.getJob() == null || event.getScope() != null || event.getTest() == null) {
+            continue;
+         }
+         Map<String, QuarantineRecord> records = content.records.get(event.getJob());
+         if (event.getType() == QuarantineAuditLog.Type.QUARANTINE) {
+            if (records == null) {
+               records = new HashMap<String, QuarantineRecord>();
+               content.records.put(event.getJob(), records);
+            }
+            QuarantineRecord old = records.get(event.getTest());
+            if (old != null && StringUtils.equals(old.getQuarantinedBy(), event.getUser())
+                  && StringUtils.equals(old.getReason(), event.getReason())
+                  && old.getExpiryMillis() == event.getExpiry()) {
+               continue;
+            }
+            records.put(event.getTest(), new QuarantineRecord(event.getTest(), event.getUser(), event.getReason(),
+                  event.getTime(), event.getExpiry(), 0, old != null ? old.getLastSeen() : 0,
+                  old != null ? old.getLastSeenTime() : 0));
+         } else if (records == null || records.remove(event.getTest()) == null) {
+            continue;
+         }
+         applied++;
+      }
+      return applied;
+   }
+
+   private File getBootstrapMarker() {
+      return new File(Jenkins.getInstance().getRootDir(), "quarantine-index.bootstrapped");
+   }
+
+   /**
+    * Indexes the jobs that have no snapshot yet from their latest completed
+    * builds, e.g. jobs that haven't been built since the plugin was
+    * installed. Done once, a few jobs at a time in the background; a marker
+    * file remembers that it is complete, so a restart in the middle picks up
+    * the jobs that are still missing.
+    */
+   void bootstrap() {
+      final File marker = getBootstrapMarker();
+      if (marker.exists()) {
+         return;
+      }
+      final Deque<String> pending = new ArrayDeque<String>();
+      for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+         if (!jobs.containsKey(job.getFullName())) {
+            pending.add(job.getFullName());
+         }
+      }
+      Timer.get().schedule(new Runnable() {
+         public void run() {
+            if (!bootstrap(pending, BOOTSTRAP_BATCH)) {
+               Timer.get().schedule(this, BOOTSTRAP_PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+               return;
+            }
+            try {
+               marker.createNewFile();
+            } catch (IOException e) {
+               LOGGER.log(Level.WARNING, "failed writing " + marker, e);
+            }
+            LOGGER.fine("bootstrapped the quarantine index");
+         }
+      }, BOOTSTRAP_PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Indexes up to <code>max</code> of the pending jobs.
+    *
+    * @return whether no jobs are left
+    */
+   boolean bootstrap(Deque<String> pending, int max) {
+      for (int i = 0; i < max && !pending.isEmpty(); i++) {
+         String name = pending.poll();
+         Job<?, ?> job = Jenkins.getInstance().getItemByFullName(name, Job.class);
+         if (job == null) {
+            // deleted in the meantime
+            continue;
+         }
+         try {
+            getOrLoad(job);
+         } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "failed indexing the quarantines of " + name, e);
+         }
+      }
+      return pending.isEmpty();
+   }
+
+   /**
+    * Keeps the index and the {@link FlakinessStore} in line with deleted,
+    * renamed and moved jobs.
+    */
+   @Extension
+   public static final class JobListener extends ItemListener {
+      @Override
+      public void onDeleted(Item item) {
+         if (item instanceof Job) {
+            get().remove(item.getFullName());
+            FlakinessStore.get().remove(item.getFullName());
+         } else if (item instanceof ItemGroup) {
+            get().removeAll(item.getFullName());
+            FlakinessStore.get().removeAll(item.getFullName());
+         }
+      }
+
+      @Override
+      public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+         // also called for each job inside a renamed folder
+         if (item instanceof Job) {
+            get().rename(oldFullName, newFullName);
+            FlakinessStore.get().rename(oldFullName, newFullName, item.getRootDir());
+         }
+      }
+   }
+
+   /**
+    * Quarantines to start a brand new job with. For a job inside a folder
+    * (e.g. a branch of a multibranch project) these are the quarantines of
+    * the first sibling named like a default branch. The sibling's snapshot is
+    * shared as is, so this is cheap no matter how many quarantines it has.
+    *
+    * @return the seed, or null if there is none
+    */
+   Map<String, QuarantineRecord> findSeed(Job<?, ?> job) {
+      ItemGroup<?> parent = job.getParent();
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      if (!(parent instanceof Item) || config == null) {
+         return null;
+      }
+      for (String name : config.getDefaultBranchNameList()) {
+         Item sibling = parent.getItem(name);
+         if (sibling instanceof Job && sibling != job) {
+            Snapshot snapshot = getOrLoad((Job<?, ?>) sibling);
+            if (snapshot != null) {
+               return snapshot.getRecords();
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * The snapshot of a job, reading its latest completed build if nothing was
+    * recorded since startup.
+    */
+   Snapshot getOrLoad(Job<?, ?> job) {
+      Snapshot snapshot = jobs.get(job.getFullName());
+      if (snapshot != null) {
+         return snapshot;
+      }
+      Run<?, ?> build = job.getLastCompletedBuild();
+      if (build == null) {
+         return null;
+      }
+      TestResultAction action = build.getAction(TestResultAction.class);
+      if (action == null || action.getResult() == null) {
+         return null;
+      }
+      Map<String, QuarantineRecord> records = new HashMap<String, QuarantineRecord>();
+      for (SuiteResult suite : action.getResult().getSuites()) {
+         for (CaseResult test : suite.getCases()) {
+            QuarantineTestAction quarantine = test.getTestAction(QuarantineTestAction.class);
+            if (quarantine != null && quarantine.isQuarantined() && !quarantine.isInherited()) {
+               records.put(test.getId(), QuarantineRecord.of(quarantine));
+            }
+         }
+      }
+      publish(job, build.getNumber(), records, records.keySet());
+      return jobs.get(job.getFullName());
+   }
+}
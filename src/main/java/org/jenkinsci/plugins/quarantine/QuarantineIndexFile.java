@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.quarantine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The {@link QuarantineIndex} as written to disk: every job's snapshot in a
+ * binary file followed by a CRC32 of its content, so a file torn by a crash
+ * is noticed and ignored rather than half read. It also records up to when
+ * the {@link QuarantineAuditLog} is covered, the changes logged after that
+ * are replayed on top when loading.
+ */
+final class QuarantineIndexFile {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineIndexFile.class.getName());
+
+   static final String FILE_NAME = "quarantine-index.bin";
+
+   private static final int MAGIC = 0x51494458; // QIDX
+   private static final int VERSION = 1;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /** the checksum at the end of the file */
+   private static final int TRAILER = 8;
+
+   /**
+    * What was read from a file
+    */
+   static final class Content {
+      /** audit log events from this time on may not be part of the snapshots */
+      final long journalTime;
+      final Map<String, Integer> builds;
+      final Map<String, Map<String, QuarantineRecord>> records;
+
+      Content(long journalTime, Map<String, Integer> builds, Map<String, Map<String, QuarantineRecord>> records) {
+         this.journalTime = journalTime;
+         this.builds = builds;
+         this.records = records;
+      }
+   }
+
+   private QuarantineIndexFile() {
+   }
+
+   static void write(File file, long journalTime, Map<String, QuarantineIndex.Snapshot> jobs) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      CRC32 crc = new CRC32();
+      FileOutputStream stream = new FileOutputStream(tmp);
+      try {
+         DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(stream), crc));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(journalTime);
+         out.writeInt(jobs.size());
+         for (Map.Entry<String, QuarantineIndex.Snapshot> entry : jobs.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().getBuild());
+            Map<String, QuarantineRecord> records = entry.getValue().getRecords();
+            out.writeInt(records.size());
+            for (QuarantineRecord record : records.values()) {
+               writeString(out, record.getTestObjectId());
+               writeString(out, record.getQuarantinedBy());
+               writeString(out, record.getReason());
+               out.writeLong(record.getDate().getTime());
+               out.writeLong(record.getExpiryMillis());
+               out.writeInt(record.getPassStreak());
+               out.writeInt(record.getLastSeen());
+               out.writeLong(record.getLastSeenTime());
+            }
+         }
+         out.flush();
+         // not part of the checksum
+         DataOutputStream trailer = new DataOutputStream(new BufferedOutputStream(stream));
+         trailer.writeLong(crc.getValue());
+         trailer.flush();
+         stream.getFD().sync();
+      } finally {
+         stream.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = value.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   /**
+    * @return the content, or null if there is no file or it is damaged
+    */
+   static Content read(File file) {
+      if (!file.isFile()) {
+         return null;
+      }
+      try {
+         // not mapped, that would keep the file from being replaced on Windows
+         ByteBuffer buffer = QuarantineSummary.readFully(file);
+         int size = buffer.limit();
+         if (size < 4 + 4 + 8 + 4 + TRAILER) {
+            LOGGER.warning("unexpected size of " + file);
+            return null;
+         }
+         int end = size - TRAILER;
+         CRC32 crc = new CRC32();
+         ByteBuffer content = buffer.duplicate();
+         content.limit(end);
+         crc.update(content);
+         if (crc.getValue() != buffer.getLong(end)) {
+            LOGGER.warning("checksum mismatch in " + file + ", ignoring it");
+            return null;
+         }
+         buffer.limit(end);
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            LOGGER.warning("unexpected format of " + file);
+            return null;
+         }
+         long journalTime = buffer.getLong();
+         int jobCount = buffer.getInt();
+         Map<String, Integer> builds = new HashMap<String, Integer>();
+         Map<String, Map<String, QuarantineRecord>> records = new HashMap<String, Map<String, QuarantineRecord>>();
+         for (int i = 0; i < jobCount; i++) {
+            String job = readString(buffer);
+            builds.put(job, buffer.getInt());
+            int count = buffer.getInt();
+            Map<String, QuarantineRecord> jobRecords = new HashMap<String, QuarantineRecord>(count * 2);
+            for (int j = 0; j < count; j++) {
+               QuarantineRecord record = new QuarantineRecord(readString(buffer), readString(buffer),
+                     readString(buffer), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                     buffer.getLong());
+               jobRecords.put(record.getTestObjectId(), record);
+            }
+            records.put(job, jobRecords);
+         }
+         return new Content(journalTime, builds, records);
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed reading " + file, e);
+      } catch (BufferUnderflowException e) {
+         LOGGER.log(Level.WARNING, "truncated " + file, e);
+      }
+      return null;
+   }
+
+   private static String readString(ByteBuffer buffer) {
+      int length = buffer.getInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, UTF8);
+   }
+}
@@ -0,0 +1,23 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+
+/**
+ * Gets told about quarantines being changed and quarantined tests failing.
+ *
+ * Events are delivered one at a time on a single background thread, in the
+ * order they were published, some time after the fact, so listeners don't
+ * slow down builds or requests. A listener that takes long holds up the
+ * others, and if events come in faster than they are delivered the newest
+ * ones are dropped, see {@link QuarantineEventBus}.
+ */
+public abstract class QuarantineListener implements ExtensionPoint {
+
+   public abstract void onEvent(QuarantineEvent event);
+
+   public static ExtensionList<QuarantineListener> all() {
+      return Jenkins.getInstance().getExtensionList(QuarantineListener.class);
+   }
+}
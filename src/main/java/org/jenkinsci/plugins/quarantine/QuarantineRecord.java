@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.quarantine;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * An immutable copy of the quarantine state of one test, detached from any
+ * build. Used wherever quarantine state is kept outside of build.xml.
+ */
+public final class QuarantineRecord implements Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   private final String testObjectId;
+   private final String quarantinedBy;
+   private final String reason;
+   private final long date;
+   /** when the quarantine ends, 0 if it doesn't */
+   private final long expiry;
+   /** builds passed in a row while quarantined, as of the build this was taken from */
+   private final int passStreak;
+   /** the build the test last ran in and when it started, 0 if unknown */
+   private final int lastSeen;
+   private final long lastSeenTime;
+
+   public QuarantineRecord(String testObjectId, String quarantinedBy, String reason, long date) {
+      this(testObjectId, quarantinedBy, reason, date, 0);
+   }
+
+   public QuarantineRecord(String testObjectId, String quarantinedBy, String reason, long date, long expiry) {
+      this(testObjectId, quarantinedBy, reason, date, expiry, 0);
+   }
+
+   QuarantineRecord(String testObjectId, String quarantinedBy, String reason, long date, long expiry,
+         int passStreak) {
+      this(testObjectId, quarantinedBy, reason, date, expiry, passStreak, 0, 0);
+   }
+
+   QuarantineRecord(String testObjectId, String quarantinedBy, String reason, long date, long expiry,
+         int passStreak, int lastSeen, long lastSeenTime) {
+      this.testObjectId = testObjectId;
+      this.quarantinedBy = quarantinedBy;
+      this.reason = reason;
+      this.date = date;
+      this.expiry = expiry;
+      this.passStreak = passStreak;
+      this.lastSeen = lastSeen;
+      this.lastSeenTime = lastSeenTime;
+   }
+
+   /**
+    * The state of a quarantine as of the build it belongs to, which is where
+    * the test was last seen
+    */
+   static QuarantineRecord of(QuarantineTestAction action) {
+      Date expiry = action.getExpiry();
+      return new QuarantineRecord(action.getTestObjectId(), action.getQuarantinedBy(), action.getReason(),
+            action.getDate().getTime(), expiry != null ? expiry.getTime() : 0, action.getPassStreak(),
+            action.owner.getBuildNumber(), action.owner.getBuildTime());
+   }
+
+   public String getTestObjectId() {
+      return testObjectId;
+   }
+
+   public String getQuarantinedBy() {
+      return quarantinedBy;
+   }
+
+   public String getReason() {
+      return reason;
+   }
+
+   public Date getDate() {
+      return new Date(date);
+   }
+
+   public Date getExpiry() {
+      return expiry != 0 ? new Date(expiry) : null;
+   }
+
+   long getExpiryMillis() {
+      return expiry;
+   }
+
+   public int getPassStreak() {
+      return passStreak;
+   }
+
+   /**
+    * Number of the last build the test ran in, 0 if unknown
+    */
+   public int getLastSeen() {
+      return lastSeen;
+   }
+
+   long getLastSeenTime() {
+      return lastSeenTime;
+   }
+
+   public boolean isExpired(long now) {
+      return expiry != 0 && expiry <= now;
+   }
+
+   @Override
+   public String toString() {
+      return "QuarantineRecord(" + testObjectId + ",quarantinedBy=" + quarantinedBy + ",reason=" + reason + ")";
+   }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.tasks.junit.TestAction;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+/**
+ * The quarantines of a whole test result, at
+ * <code>testReport/quarantine/api/json</code>. Unlike the generic remote API
+ * this lists only the quarantined tests, and writes a JSON document that is
+ * built once per build (and change) rather than walking every test case.
+ */
+public class QuarantineResultAction extends TestAction {
+
+   private final Data owner;
+
+   QuarantineResultAction(Data owner) {
+      this.owner = owner;
+   }
+
+   public String getIconFileName() {
+      return null;
+   }
+
+   public String getDisplayName() {
+      return Messages.QuarantineTestAction_DisplayName();
+   }
+
+   public String getUrlName() {
+      return "quarantine";
+   }
+
+   public JsonApi getApi() {
+      return new JsonApi();
+   }
+
+   public final class JsonApi {
+      public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+         byte[] json = owner.getJson();
+         rsp.setContentType("application/json;charset=UTF-8");
+         rsp.setContentLength(json.length);
+         OutputStream out = rsp.getOutputStream();
+         out.write(json);
+         out.flush();
+      }
+   }
+
+   static JSONObject toJSON(QuarantineTestAction action) {
+      JSONObject json = new JSONObject();
+      json.put("id", action.getTestObjectId());
+      json.put("quarantinedBy", action.getQuarantinedBy());
+      json.put("date", action.getDate().getTime());
+      putIfSet(json, "reason", action.getReason());
+      Date expiry = action.getExpiry();
+      if (expiry != null) {
+         json.put("expiry", expiry.getTime());
+      }
+      putIfSet(json, "rule", action.getRule());
+      putIfSet(json, "scope", action.getScope());
+      json.put("passStreak", action.getPassStreak());
+      json.put("runs", action.getRuns());
+      json.put("failures", action.getFailures());
+      json.put("totalDuration", action.getTotalDuration());
+      json.put("version", action.getVersion());
+      return json;
+   }
+
+   private static void putIfSet(JSONObject json, String key, String value) {
+      if (value != null) {
+         json.put(key, value);
+      }
+   }
+}
@@ -0,0 +1,448 @@
+package org.jenkinsci.plugins.quarantine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches full test names (<code>package.Class.method</code>) against
+ * quarantine rules. Rules are given one per line:
+ * <ul>
+ * <li><code>com.acme.FooTest.testBar</code> matches exactly that test</li>
+ * <li><code>com.acme.it.kafka.*</code> or <code>*Test.testRetry[*]</code>
+ * are globs, <code>*</code> matching any run of characters and
+ * <code>?</code> a single one</li>
+ * <li><code>re:...</code> is a java regular expression that has to match
+ * the whole name</li>
+ * </ul>
+ * Empty lines and lines starting with <code>#</code> are ignored.
+ *
+ * Rules are indexed by a literal part every name they match has to contain,
+ * so matching a name only looks at the rules that can match it:
+ * <ul>
+ * <li>exact rules, globs and regular expressions that start with a literal
+ * prefix sit in a trie keyed by it, walked once along the name. Pure prefix
+ * rules (<code>foo.bar.*</code>) match as soon as their node is reached.</li>
+ * <li>globs that start with a wildcard but end in a literal sit in a trie
+ * keyed by that suffix, walked once backwards from the end of the name.</li>
+ * <li>globs that start and end with a wildcard are found through an
+ * Aho-Corasick automaton of their longest literal run, which finds all of
+ * them contained in the name in one pass.</li>
+ * </ul>
+ * Only rules without any literal to go by (e.g. <code>*</code> or
+ * <code>re:(?i).*slow.*</code>) are tried one by one.
+ */
+final class QuarantineRuleMatcher {
+
+   static final QuarantineRuleMatcher EMPTY = new QuarantineRuleMatcher();
+
+   private static final String REGEX_PREFIX = "re:";
+
+   private final Node root = new Node();
+   private final Node suffixRoot = new Node();
+   private final Infix infixRoot = new Infix();
+   private final List<Rule> unindexed = new ArrayList<Rule>();
+   private int size;
+
+   /**
+    * A glob or a regular expression, as written
+    */
+   private static final class Rule {
+      final String source;
+      /** what is left of the glob after the literal it is indexed by, null for a regex */
+      final String glob;
+      final Pattern regex;
+
+      Rule(String source, String glob, Pattern regex) {
+         this.source = source;
+         this.glob = glob;
+         this.regex = regex;
+      }
+
+      /**
+       * @param offset where the rest of the glob has to match
+       * @param end where it has to end
+       */
+      boolean matches(String name, int offset, int end) {
+         return regex != null ? regex.matcher(name).matches() : globMatches(glob, name, offset, end);
+      }
+   }
+
+   private static final class Node {
+      private Map<Character, Node> children;
+      /** rule matching a name that ends at this node */
+      private String exact;
+      /** rule of the form prefix* */
+      private String prefix;
+      /** remaining globs and regular expressions */
+      private List<Rule> rules;
+
+      Node child(char c, boolean create) {
+         if (children == null) {
+            if (!create) {
+               return null;
+            }
+            children = new HashMap<Character, Node>(4);
+         }
+         Node n = children.get(c);
+         if (n == null && create) {
+            n = new Node();
+            children.put(c, n);
+         }
+         return n;
+      }
+
+      void add(Rule rule) {
+         if (rules == null) {
+            rules = new ArrayList<Rule>(1);
+         }
+         rules.add(rule);
+      }
+   }
+
+   /**
+    * A state of the Aho-Corasick automaton
+    */
+   private static final class Infix {
+      private final Map<Character, Infix> next = new HashMap<Character, Infix>(4);
+      /** longest proper suffix of this state that is a state too */
+      private Infix fail;
+      /** nearest state along the fail links that has rules */
+      private Infix output;
+      private List<Rule> rules;
+   }
+
+   private QuarantineRuleMatcher() {
+   }
+
+   /**
+    * Compiles the rules from any number of texts, each containing one rule per
+    * line. Invalid regular expressions are skipped, {@link #check(String)}
+    * tells about them when the rules are configured.
+    */
+   static QuarantineRuleMatcher compile(String... texts) {
+      QuarantineRuleMatcher matcher = new QuarantineRuleMatcher();
+      for (String text : texts) {
+         if (text == null) {
+            continue;
+         }
+         for (String line : text.split("\r?\n")) {
+            matcher.add(line.trim());
+         }
+      }
+      if (matcher.size == 0) {
+         return EMPTY;
+      }
+      matcher.linkInfixes();
+      return matcher;
+   }
+
+   /**
+    * @return the problem with the first invalid rule of the text, null if
+    *         all of them are fine
+    */
+   static String check(String text) {
+      if (text == null) {
+         return null;
+      }
+      String[] lines = text.split("\r?\n");
+      for (int i = 0; i < lines.length; i++) {
+         String rule = lines[i].trim();
+         if (rule.startsWith(REGEX_PREFIX)) {
+            try {
+               Pattern.compile(rule.substring(REGEX_PREFIX.length()));
+            } catch (PatternSyntaxException e) {
+               return Messages.QuarantineRuleMatcher_InvalidRegex(String.valueOf(i + 1), e.getDescription());
+            }
+         }
+      }
+      return null;
+   }
+
+   private void add(String rule) {
+      if (rule.isEmpty() || rule.startsWith("#")) {
+         return;
+      }
+      if (rule.startsWith(REGEX_PREFIX)) {
+         Pattern regex;
+         try {
+            regex = Pattern.compile(rule.substring(REGEX_PREFIX.length()));
+         } catch (PatternSyntaxException e) {
+            // ignore broken rule, the rest still applies
+            return;
+         }
+         String literal = literalPrefix(regex.pattern());
+         if (literal.isEmpty()) {
+            unindexed.add(new Rule(rule, null, regex));
+         } else {
+            walk(root, literal).add(new Rule(rule, null, regex));
+         }
+         size++;
+         return;
+      }
+
+      int wildcard = firstWildcard(rule);
+      if (wildcard == 0) {
+         addUnanchored(rule);
+         size++;
+         return;
+      }
+      String literal = wildcard < 0 ? rule : rule.substring(0, wildcard);
+      Node node = walk(root, literal);
+      if (wildcard < 0) {
+         node.exact = rule;
+      } else if (wildcard == rule.length() - 1 && rule.charAt(wildcard) == '*') {
+         node.prefix = rule;
+      } else {
+         node.add(new Rule(rule, rule.substring(wildcard), null));
+      }
+      size++;
+   }
+
+   /**
+    * Indexes a glob starting with a wildcard by its literal suffix or, if
+    * it ends in a wildcard too, by its longest literal run.
+    */
+   private void addUnanchored(String rule) {
+      int last = lastWildcard(rule);
+      if (last < rule.length() - 1) {
+         Node node = suffixRoot;
+         for (int i = rule.length() - 1; i > last; i--) {
+            node = node.child(rule.charAt(i), true);
+         }
+         node.add(new Rule(rule, rule.substring(0, last + 1), null));
+         return;
+      }
+      String longest = "";
+      int start = 0;
+      for (int i = 0; i <= rule.length(); i++) {
+         if (i == rule.length() || rule.charAt(i) == '*' || rule.charAt(i) == '?') {
+            if (i - start > longest.length()) {
+               longest = rule.substring(start, i);
+            }
+            start = i + 1;
+         }
+      }
+      if (longest.isEmpty()) {
+         unindexed.add(new Rule(rule, rule, null));
+         return;
+      }
+      Infix state = infixRoot;
+      for (int i = 0; i < longest.length(); i++) {
+         Infix next = state.next.get(longest.charAt(i));
+         if (next == null) {
+            next = new Infix();
+            state.next.put(longest.charAt(i), next);
+         }
+         state = next;
+      }
+      if (state.rules == null) {
+         state.rules = new ArrayList<Rule>(1);
+      }
+      state.rules.add(new Rule(rule, rule, null));
+   }
+
+   private static Node walk(Node node, String literal) {
+      for (int i = 0; i < literal.length(); i++) {
+         node = node.child(literal.charAt(i), true);
+      }
+      return node;
+   }
+
+   /**
+    * Sets the fail and output links of the automaton, breadth first
+    */
+   private void linkInfixes() {
+      Deque<Infix> queue = new ArrayDeque<Infix>();
+      for (Infix child : infixRoot.next.values()) {
+         child.fail = infixRoot;
+         queue.add(child);
+      }
+      while (!queue.isEmpty()) {
+         Infix state = queue.poll();
+         for (Map.Entry<Character, Infix> entry : state.next.entrySet()) {
+            Infix child = entry.getValue();
+            Infix fail = state.fail;
+            while (fail != infixRoot && !fail.next.containsKey(entry.getKey())) {
+               fail = fail.fail;
+            }
+            Infix target = fail.next.get(entry.getKey());
+            child.fail = target != null && target != child ? target : infixRoot;
+            child.output = child.fail.rules != null ? child.fail : child.fail.output;
+            queue.add(child);
+         }
+      }
+   }
+
+   /**
+    * The literal text every match of the regular expression starts with,
+    * empty if there is none or it can't be told easily.
+    */
+   static String literalPrefix(String regex) {
+      if (regex.indexOf('|') >= 0) {
+         return "";
+      }
+      StringBuilder literal = new StringBuilder();
+      int i = 0;
+      while (i < regex.length()) {
+         char c = regex.charAt(i);
+         int next = i + 1;
+         if (c == '\\') {
+            if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+               // a character class, back reference, quote...
+               break;
+            }
+            c = regex.charAt(next++);
+         } else if (".[]()*+?{}^$".indexOf(c) >= 0) {
+            break;
+         }
+         if (next < regex.length() && "*?{".indexOf(regex.charAt(next)) >= 0) {
+            // optional or repeated
+            break;
+         }
+         literal.append(c);
+         if (next < regex.length() && regex.charAt(next) == '+') {
+            break;
+         }
+         i = next;
+      }
+      return literal.toString();
+   }
+
+   private static int firstWildcard(String s) {
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '*' || c == '?') {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private static int lastWildcard(String s) {
+      for (int i = s.length() - 1; i >= 0; i--) {
+         char c = s.charAt(i);
+         if (c == '*' || c == '?') {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   boolean isEmpty() {
+      return size == 0;
+   }
+
+   int size() {
+      return size;
+   }
+
+   /**
+    * @return the first rule matching the given name, or null if none does
+    */
+   String match(String name) {
+      if (size == 0 || name == null) {
+         return null;
+      }
+
+      Node node = root;
+      int depth = 0;
+      while (node != null) {
+         if (node.prefix != null) {
+            return node.prefix;
+         }
+         String rule = firstMatch(node.rules, name, depth, name.length());
+         if (rule != null) {
+            return rule;
+         }
+         if (depth == name.length()) {
+            if (node.exact != null) {
+               return node.exact;
+            }
+            break;
+         }
+         node = node.child(name.charAt(depth), false);
+         depth++;
+      }
+
+      node = suffixRoot;
+      int end = name.length();
+      while (node != null) {
+         // the rest of the glob has to match what comes before the suffix
+         String rule = firstMatch(node.rules, name, 0, end);
+         if (rule != null) {
+            return rule;
+         }
+         if (end == 0) {
+            break;
+         }
+         node = node.child(name.charAt(--end), false);
+      }
+
+      if (infixRoot.next.size() > 0) {
+         Infix state = infixRoot;
+         for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            while (state != infixRoot && !state.next.containsKey(c)) {
+               state = state.fail;
+            }
+            Infix next = state.next.get(c);
+            state = next != null ? next : infixRoot;
+            for (Infix found = state.rules != null ? state : state.output; found != null; found = found.output) {
+               String rule = firstMatch(found.rules, name, 0, name.length());
+               if (rule != null) {
+                  return rule;
+               }
+            }
+         }
+      }
+
+      return firstMatch(unindexed, name, 0, name.length());
+   }
+
+   private static String firstMatch(List<Rule> rules, String name, int offset, int end) {
+      if (rules != null) {
+         for (Rule rule : rules) {
+            if (rule.matches(name, offset, end)) {
+               return rule.source;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Wildcard matching of <code>pattern</code> against the part of
+    * <code>name</code> from <code>offset</code> to <code>end</code>,
+    * backtracking only to the last star.
+    */
+   static boolean globMatches(String pattern, String name, int offset, int end) {
+      int p = 0;
+      int n = offset;
+      int star = -1;
+      int mark = 0;
+      while (n < end) {
+         if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+            p++;
+            n++;
+         } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+            star = p++;
+            mark = n;
+         } else if (star >= 0) {
+            p = star + 1;
+            n = ++mark;
+         } else {
+            return false;
+         }
+      }
+      while (p < pattern.length() && pattern.charAt(p) == '*') {
+         p++;
+      }
+      return p == pattern.length();
+   }
+}
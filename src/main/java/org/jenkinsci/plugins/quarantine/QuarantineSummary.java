@@ -0,0 +1,377 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.junit.CaseResult;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The quarantined tests of a build, with just enough of their results to show
+ * them in the report, kept in a small file next to build.xml. Loading a
+ * build's test result means parsing its junitResult.xml, which can be huge,
+ * so the report reads this instead and the full result is only loaded when
+ * someone opens a test.
+ *
+ * The file is written when the build records its results and rewritten
+ * whenever the quarantines of the latest build change.
+ */
+final class QuarantineSummary {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineSummary.class.getName());
+
+   static final String FILE_NAME = "quarantine-summary.bin";
+
+   private static final int MAGIC = 0x5153554d; // QSUM
+   /** 2 added the cost of the quarantine, 3 the failure signatures */
+   private static final int VERSION = 3;
+
+   private static final int MAX_ERROR_LENGTH = 500;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   static final byte PASSED = 0;
+   static final byte FAILED = 1;
+   static final byte SKIPPED = 2;
+
+   /**
+    * One quarantined test
+    */
+   public static final class Entry {
+      private final String id;
+      private final String name;
+      private final String url;
+      private final byte status;
+      private final float duration;
+      private final int passes;
+      private final String errorDetails;
+      private final String quarantinedBy;
+      private final long date;
+      private final String reason;
+      private final String rule;
+      private final int runs;
+      private final int failures;
+      private final double totalDuration;
+      private final double rollingDuration;
+      private final int signatures;
+      private final boolean newSignature;
+
+      Entry(String id, String name, String url, byte status, float duration, int passes, String errorDetails,
+            String quarantinedBy, long date, String reason, String rule) {
+         this(id, name, url, status, duration, passes, errorDetails, quarantinedBy, date, reason, rule, 0, 0, 0, 0);
+      }
+
+      Entry(String id, String name, String url, byte status, float duration, int passes, String errorDetails,
+            String quarantinedBy, long date, String reason, String rule, int runs, int failures,
+            double totalDuration, double rollingDuration) {
+         this(id, name, url, status, duration, passes, errorDetails, quarantinedBy, date, reason, rule, runs,
+               failures, totalDuration, rollingDuration, 0, false);
+      }
+
+      Entry(String id, String name, String url, byte status, float duration, int passes, String errorDetails,
+            String quarantinedBy, long date, String reason, String rule, int runs, int failures,
+            double totalDuration, double rollingDuration, int signatures, boolean newSignature) {
+         this.id = id;
+         this.name = name;
+         this.url = url;
+         this.status = status;
+         this.duration = duration;
+         this.passes = passes;
+         this.errorDetails = errorDetails;
+         this.quarantinedBy = quarantinedBy;
+         this.date = date;
+         this.reason = reason;
+         this.rule = rule;
+         this.runs = runs;
+         this.failures = failures;
+         this.totalDuration = totalDuration;
+         this.rollingDuration = rollingDuration;
+         this.signatures = signatures;
+         this.newSignature = newSignature;
+      }
+
+      /**
+       * The result part of an entry, quarantine state is filled in by
+       * {@link #with(QuarantineTestAction)}
+       */
+      static Entry of(CaseResult result, int passes) {
+         byte status = result.isPassed() ? PASSED : result.isSkipped() ? SKIPPED : FAILED;
+         return new Entry(result.getId(), result.getFullName(), result.getUrl(), status, result.getDuration(),
+               passes, StringUtils.abbreviate(result.getErrorDetails(), MAX_ERROR_LENGTH), null, 0, null, null);
+      }
+
+      Entry with(QuarantineTestAction action) {
+         return new Entry(id, name, url, status, duration, passes, errorDetails, action.getQuarantinedBy(),
+               action.getDate().getTime(), action.getReason(), action.getRule(), action.getRuns(),
+               action.getFailures(), action.getTotalDuration(), action.getRollingDuration(),
+               action.getSignatureCount(), action.isNewSignature());
+      }
+
+      public String getId() {
+         return id;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * Relative to the test report of the build
+       */
+      public String getUrl() {
+         return url;
+      }
+
+      public boolean isPassed() {
+         return status == PASSED;
+      }
+
+      public boolean isSkipped() {
+         return status == SKIPPED;
+      }
+
+      public String getStatus() {
+         return status == PASSED ? "Passed" : status == SKIPPED ? "Skipped" : "Failed";
+      }
+
+      public float getDuration() {
+         return duration;
+      }
+
+      /**
+       * Number of builds the test passed in a row, up to this one
+       */
+      public int getPasses() {
+         return passes;
+      }
+
+      public String getErrorDetails() {
+         return errorDetails;
+      }
+
+      public String getQuarantinedBy() {
+         return quarantinedBy;
+      }
+
+      public Date getDate() {
+         return new Date(date);
+      }
+
+      public String getReason() {
+         return reason;
+      }
+
+      public String getRule() {
+         return rule;
+      }
+
+      public int getRuns() {
+         return runs;
+      }
+
+      public int getFailures() {
+         return failures;
+      }
+
+      /**
+       * Seconds spent running the test while in quarantine
+       */
+      public double getTotalDuration() {
+         return totalDuration;
+      }
+
+      public double getRollingDuration() {
+         return rollingDuration;
+      }
+
+      /**
+       * Number of distinct ways the test failed while in quarantine
+       */
+      public int getSignatures() {
+         return signatures;
+      }
+
+      /**
+       * Whether the test failed in this build in a way it hadn't before
+       */
+      public boolean isNewSignature() {
+         return newSignature;
+      }
+   }
+
+   private QuarantineSummary() {
+   }
+
+   static File getFile(Run<?, ?> build) {
+      return new File(build.getRootDir(), FILE_NAME);
+   }
+
+   /**
+    * The entries of the given build of a job, null if there is no such
+    * build or it has no summary
+    */
+   static Map<String, Entry> read(Job<?, ?> job, int build) {
+      Run<?, ?> run = job.getBuildByNumber(build);
+      return run != null ? read(getFile(run)) : null;
+   }
+
+   /**
+    * How a test did in the summarized build: passing, failing or skipped.
+    * Unknown if there is no entry, e.g. because it didn't run.
+    */
+   static String getOutcome(Entry entry) {
+      if (entry == null) {
+         return "unknown";
+      }
+      return entry.isPassed() ? "passing" : entry.isSkipped() ? "skipped" : "failing";
+   }
+
+   static void write(File file, Collection<Entry> entries) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(entries.size());
+         for (Entry entry : entries) {
+            writeString(out, entry.id);
+            writeString(out, entry.name);
+            writeString(out, entry.url);
+            out.writeByte(entry.status);
+            out.writeFloat(entry.duration);
+            out.writeInt(entry.passes);
+            writeString(out, entry.errorDetails);
+            writeString(out, entry.quarantinedBy);
+            out.writeLong(entry.date);
+            writeString(out, entry.reason);
+            writeString(out, entry.rule);
+            out.writeInt(entry.runs);
+            out.writeInt(entry.failures);
+            out.writeDouble(entry.totalDuration);
+            out.writeDouble(entry.rollingDuration);
+            out.writeInt(entry.signatures);
+            out.writeBoolean(entry.newSignature);
+         }
+      } finally {
+         out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = value.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   /**
+    * @return the entries by test id, or null if the build has no (readable)
+    *         summary
+    */
+   static Map<String, Entry> read(File file) {
+      if (!file.isFile()) {
+         return null;
+      }
+      try {
+         ByteBuffer buffer = readFully(file);
+         int version = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+         if (version < 1 || version > VERSION) {
+            LOGGER.warning("unexpected format of " + file);
+            return null;
+         }
+         int count = buffer.getInt();
+         Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+         for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(readString(buffer), readString(buffer), readString(buffer), buffer.get(),
+                  buffer.getFloat(), buffer.getInt(), readString(buffer), readString(buffer), buffer.getLong(),
+                  readString(buffer), readString(buffer));
+            if (version >= 2) {
+               entry = new Entry(entry.id, entry.name, entry.url, entry.status, entry.duration, entry.passes,
+                     entry.errorDetails, entry.quarantinedBy, entry.date, entry.reason, entry.rule,
+                     buffer.getInt(), buffer.getInt(), buffer.getDouble(), buffer.getDouble());
+            }
+            if (version >= 3) {
+               entry = new Entry(entry.id, entry.name, entry.url, entry.status, entry.duration, entry.passes,
+                     entry.errorDetails, entry.quarantinedBy, entry.date, entry.reason, entry.rule, entry.runs,
+                     entry.failures, entry.totalDuration, entry.rollingDuration, buffer.getInt(),
+                     buffer.get() != 0);
+            }
+            entries.put(entry.id, entry);
+         }
+         return entries;
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed reading " + file, e);
+      } catch (BufferUnderflowException e) {
+         LOGGER.log(Level.WARNING, "truncated " + file, e);
+      }
+      return null;
+   }
+
+   /**
+    * Reads the whole file into memory. It isn't mapped: a mapping keeps the
+    * file from being replaced on Windows until it is garbage collected.
+    */
+   static ByteBuffer readFully(File file) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         long size = channel.size();
+         if (size > Integer.MAX_VALUE) {
+            throw new IOException("unexpected size of " + file);
+         }
+         ByteBuffer buffer = ByteBuffer.allocate((int) size);
+         while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+               break;
+            }
+         }
+         buffer.flip();
+         return buffer;
+      } finally {
+         channel.close();
+      }
+   }
+
+   private static String readString(ByteBuffer buffer) {
+      int length = buffer.getInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   /**
+    * The entries of a build in file order, empty if it has no summary
+    */
+   static List<Entry> list(Run<?, ?> build) {
+      Map<String, Entry> entries = read(getFile(build));
+      return entries != null ? new ArrayList<Entry>(entries.values()) : Collections.<Entry>emptyList();
+   }
+}
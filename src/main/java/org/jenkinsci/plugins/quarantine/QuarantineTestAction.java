@@ -3,9 +3,12 @@ package org.jenkinsci.plugins.quarantine;
 import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
 import hudson.model.BuildBadgeAction;
 import hudson.model.Hudson;
+import hudson.model.Item;
 import hudson.model.ProminentProjectAction;
-import hudson.model.User;
+import hudson.security.ACL;
+import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.TestAction;
+import jenkins.model.Jenkins;
 import org.acegisecurity.Authentication;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.StaplerRequest;
@@ -13,19 +16,61 @@ import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 @ExportedBean(defaultVisibility = 2)
 public class QuarantineTestAction extends TestAction implements BuildBadgeAction, ProminentProjectAction {
+
+   /** recorded as the releasing user when the auto release policy kicks in */
+   public static final String AUTO_RELEASE = "auto-release";
+
+   /** recorded as the releasing user when a quarantine ran out */
+   public static final String EXPIRY = "expiry";
+
+   /** recorded as the quarantining user when a test was quarantined for being flaky */
+   public static final String FLAKINESS = "flakiness";
+
+   private static final long DAY = 24L * 60 * 60 * 1000;
+
+   /** weight of the latest run in the rolling duration */
+   private static final double ROLLING_WEIGHT = 0.2;
+
+   /** distinct ways of failing remembered per test, the oldest are forgotten */
+   static final int MAX_SIGNATURES = 16;
+
    private boolean quarantined;
    private String quarantinedBy;
    private Date quarantineDate;
+   private Date expiry;
    private String reason;
    private String testObjectId;
+   private String rule;
+   private String scope;
+   private int passStreak;
+   private Date lastFailure;
+   /** runs, failures and time spent (in seconds) while in quarantine */
+   private int runs;
+   private int failures;
+   private double totalDuration;
+   /** moving average of the duration of the latest runs, in seconds */
+   private double rollingDuration;
+   /** the {@link FailureSignature}s seen while in quarantine, oldest first */
+   private long[] signatures;
+   /** of the failure in this build, {@link FailureSignature#NONE} if it didn't fail */
+   private long signature;
+   private boolean newSignature;
+   private String releasedBy;
+   private Date releaseDate;
+   /** counts the changes of this quarantine, for compare-and-set updates */
+   private int version;
 
    protected Data owner;
 
@@ -40,17 +85,101 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
       String reason = (String) req.getSubmittedForm().get("reason");
       if (StringUtils.isEmpty(reason))
          reason = null;
-      quarantine(name, reason);
+      String scope = (String) req.getSubmittedForm().opt("scope");
+      if (!getWiderScopes().contains(scope)) {
+         scope = null;
+      } else if (!hasScopePermission(scope)) {
+         resp.sendError(HttpServletResponse.SC_FORBIDDEN, Messages.QuarantineTestAction_ScopeDenied());
+         return;
+      }
+      int ttl = req.getSubmittedForm().optInt("ttl", 0);
+      long now = System.currentTimeMillis();
+      QuarantineRecord record = new QuarantineRecord(testObjectId, name, reason, now, ttl > 0 ? now + ttl * DAY : 0);
+      if (!compareAndQuarantine(req.getSubmittedForm().optInt("version", -1), record, scope)) {
+         resp.sendError(HttpServletResponse.SC_CONFLICT, Messages.QuarantineTestAction_Conflict());
+         return;
+      }
+      QuarantineAuditLog.record(QuarantineAuditLog.Type.QUARANTINE, owner.getJob().getFullName(), scope,
+            testObjectId, name, reason, record.getExpiryMillis());
+      QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.QUARANTINED, owner.getJob().getFullName(),
+            owner.getBuildNumber(), testObjectId, null, name, reason));
       owner.save();
       resp.forwardToPreviousPage(req);
    }
 
    public void doRelease(StaplerRequest req, StaplerResponse resp) throws ServletException, IOException {
-      release();
+      String name = Hudson.getAuthentication().getName();
+      String releasedScope = scope;
+      if (!canRelease()) {
+         resp.sendError(HttpServletResponse.SC_FORBIDDEN, Messages.QuarantineTestAction_ScopeDenied());
+         return;
+      }
+      int expected = -1;
+      try {
+         if (req.getParameter("version") != null) {
+            expected = Integer.parseInt(req.getParameter("version"));
+         }
+      } catch (NumberFormatException e) {
+         resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "version must be a number");
+         return;
+      }
+      if (!compareAndRelease(expected, name)) {
+         resp.sendError(HttpServletResponse.SC_CONFLICT, Messages.QuarantineTestAction_Conflict());
+         return;
+      }
+      QuarantineAuditLog.record(QuarantineAuditLog.Type.RELEASE, owner.getJob().getFullName(), releasedScope,
+            testObjectId, name, null);
+      QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.RELEASED, owner.getJob().getFullName(),
+            owner.getBuildNumber(), testObjectId, null, name, null));
       owner.save();
       resp.forwardToPreviousPage(req);
    }
 
+   /**
+    * Quarantines this test unless it changed since the caller looked at it.
+    *
+    * @param expectedVersion the {@link #getVersion() version} the caller saw,
+    *                        -1 to quarantine regardless
+    * @return false if the version didn't match and nothing was changed
+    */
+   boolean compareAndQuarantine(int expectedVersion, QuarantineRecord record, String scope) {
+      List<Data> successors;
+      synchronized (owner) {
+         if (expectedVersion >= 0 && expectedVersion != version) {
+            return false;
+         }
+         quarantine(record, scope);
+         if (scope != null) {
+            GlobalQuarantine.get().put(scope, record);
+         }
+         successors = owner.propagate(this);
+      }
+      Data.saveAll(successors);
+      return true;
+   }
+
+   /**
+    * Releases this test unless it changed since the caller looked at it.
+    *
+    * @see #compareAndQuarantine(int, QuarantineRecord, String)
+    */
+   boolean compareAndRelease(int expectedVersion, String releasedBy) {
+      List<Data> successors;
+      synchronized (owner) {
+         if (expectedVersion >= 0 && expectedVersion != version) {
+            return false;
+         }
+         if (scope != null) {
+            GlobalQuarantine.get().remove(scope, testObjectId);
+         }
+         release(releasedBy);
+         successors = owner.propagate(this);
+      }
+      Data.saveAll(successors);
+      owner.flushOutcomes();
+      return true;
+   }
+
    public String getDisplayName() {
       return Messages.QuarantineTestAction_DisplayName();
    }
@@ -73,12 +202,270 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
    }
 
    public String quarantinedByName() {
-      User user = User.get(quarantinedBy, false, Collections.emptyMap());
-      if (user != null) {
-         return user.getDisplayName();
+      return UserInfoCache.get().getDisplayName(quarantinedBy);
+   }
+
+   public String getTestObjectId() {
+      return testObjectId;
+   }
+
+   /**
+    * Changes whenever this test is quarantined or released. Pass it back
+    * when changing the quarantine to fail instead of overwriting someone
+    * else's change.
+    */
+   @Exported
+   public int getVersion() {
+      return version;
+   }
+
+   /**
+    * How flaky this test is, from 0 to 1, or -1 if it hasn't run often
+    * enough to tell. See {@link OutcomeWindow}.
+    */
+   @Exported
+   public double getFlakinessScore() {
+      return FlakinessStore.get().getScore(owner.getJob(), testObjectId);
+   }
+
+   /**
+    * The score as a percentage, empty if there is none
+    */
+   public String getFlakinessPercent() {
+      double score = getFlakinessScore();
+      return score >= 0 ? Math.round(score * 100) + "%" : "";
+   }
+
+   /**
+    * Whether to suggest quarantining this test because it is flaky
+    */
+   public boolean isFlakinessSuggested() {
+      return !quarantined && owner.flakinessThreshold > 0 && getFlakinessScore() >= owner.flakinessThreshold;
+   }
+
+   /**
+    * Number of builds this test passed in a row while in quarantine
+    */
+   @Exported
+   public int getPassStreak() {
+      return passStreak;
+   }
+
+   /**
+    * When this test last failed while in quarantine, null if it hasn't
+    */
+   public Date getLastFailure() {
+      return lastFailure != null ? new Date(lastFailure.getTime()) : null;
+   }
+
+   /**
+    * Number of builds the test ran in while in quarantine
+    */
+   @Exported
+   public int getRuns() {
+      return runs;
+   }
+
+   /**
+    * Number of builds the test failed in while in quarantine
+    */
+   @Exported
+   public int getFailures() {
+      return failures;
+   }
+
+   /**
+    * Seconds spent running this test while in quarantine
+    */
+   @Exported
+   public double getTotalDuration() {
+      return totalDuration;
+   }
+
+   /**
+    * Seconds a run of this test takes lately, weighting recent runs most
+    */
+   @Exported
+   public double getRollingDuration() {
+      return rollingDuration;
+   }
+
+   /**
+    * Fingerprint of how this test failed in this build, null if it didn't
+    */
+   @Exported
+   public String getSignature() {
+      return FailureSignature.toString(signature);
+   }
+
+   /**
+    * Whether this test failed in this build in a way it hadn't before while
+    * in quarantine. Only such failures are notified.
+    */
+   @Exported
+   public boolean isNewSignature() {
+      return newSignature;
+   }
+
+   /**
+    * Number of distinct ways this test failed while in quarantine
+    */
+   @Exported
+   public int getSignatureCount() {
+      return signatures != null ? signatures.length : 0;
+   }
+
+   /**
+    * Who released this test from quarantine the last time, or
+    * {@link #AUTO_RELEASE} if it was released automatically
+    */
+   public String getReleasedBy() {
+      return releasedBy;
+   }
+
+   public Date getReleaseDate() {
+      return releaseDate != null ? new Date(releaseDate.getTime()) : null;
+   }
+
+   /**
+    * Continues the pass streak, the cost and the failure signatures of the
+    * quarantine this one was copied from with the outcome of this build.
+    * A quarantine started since, which has a different date, starts from
+    * nothing. Skipped tests don't count either way.
+    */
+   void trackOutcome(QuarantineTestAction previous, CaseResult result, Date now) {
+      if (previous != null && previous.isQuarantined() && previous.quarantineDate.equals(quarantineDate)) {
+         passStreak = previous.passStreak;
+         lastFailure = previous.lastFailure;
+         runs = previous.runs;
+         failures = previous.failures;
+         totalDuration = previous.totalDuration;
+         rollingDuration = previous.rollingDuration;
+         signatures = previous.signatures;
+      }
+      signature = FailureSignature.NONE;
+      newSignature = false;
+      if (result.isSkipped()) {
+         return;
+      }
+      if (result.isPassed()) {
+         passStreak++;
       } else {
-         return quarantinedBy;
+         passStreak = 0;
+         lastFailure = new Date(now.getTime());
+         failures++;
+         signature = FailureSignature.of(result.getErrorStackTrace(), result.getErrorDetails());
+         newSignature = addSignature(signature);
+      }
+      double duration = result.getDuration();
+      runs++;
+      totalDuration += duration;
+      rollingDuration = runs == 1 ? duration : rollingDuration + ROLLING_WEIGHT * (duration - rollingDuration);
+   }
+
+   /**
+    * @return false if the signature was known already
+    */
+   private boolean addSignature(long signature) {
+      long[] known = signatures != null ? signatures : new long[0];
+      for (long s : known) {
+         if (s == signature) {
+            return false;
+         }
+      }
+      // copied, the array may be shared with the action of the previous build
+      int keep = Math.min(known.length, MAX_SIGNATURES - 1);
+      long[] added = new long[keep + 1];
+      System.arraycopy(known, known.length - keep, added, 0, keep);
+      added[keep] = signature;
+      signatures = added;
+      return true;
+   }
+
+   /**
+    * The rule that put this test in quarantine, null if it was quarantined by
+    * a user
+    */
+   public String getRule() {
+      return rule;
+   }
+
+   public boolean isRuleBased() {
+      return rule != null;
+   }
+
+   /**
+    * The folder (or {@link GlobalQuarantine#GLOBAL_SCOPE}) this quarantine
+    * applies to, null if it only applies to this job
+    */
+   public String getScope() {
+      return scope;
+   }
+
+   public boolean isGlobalScope() {
+      return GlobalQuarantine.GLOBAL_SCOPE.equals(scope);
+   }
+
+   /**
+    * Whether this quarantine comes from outside the job (a rule or a wider
+    * scope). Those are looked up afresh on every build rather than carried
+    * over from the previous one.
+    */
+   public boolean isInherited() {
+      return rule != null || scope != null;
+   }
+
+   /**
+    * The scopes the current user may choose from when quarantining this
+    * test, empty if wider scopes are disabled
+    */
+   public List<String> getScopes() {
+      List<String> scopes = new ArrayList<String>();
+      for (String scope : getWiderScopes()) {
+         if (hasScopePermission(scope)) {
+            scopes.add(scope);
+         }
       }
+      return scopes;
+   }
+
+   private List<String> getWiderScopes() {
+      List<String> scopes = new ArrayList<String>();
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      if (config != null && config.isGlobalScopeEnabled()) {
+         String folder = GlobalQuarantine.folderScopeOf(owner.getJob());
+         if (folder != null) {
+            scopes.add(folder);
+         }
+         scopes.add(GlobalQuarantine.GLOBAL_SCOPE);
+      }
+      return scopes;
+   }
+
+   /**
+    * Whether the current user may quarantine tests in a scope, or release
+    * them from it. A folder needs the permission to configure it, the whole
+    * controller the permission to administer Jenkins.
+    */
+   static boolean hasScopePermission(String scope) {
+      Jenkins jenkins = Jenkins.getInstance();
+      if (GlobalQuarantine.GLOBAL_SCOPE.equals(scope)) {
+         return jenkins.hasPermission(Jenkins.ADMINISTER);
+      }
+      Item folder = jenkins.getItemByFullName(scope);
+      return folder != null && folder.hasPermission(Item.CONFIGURE);
+   }
+
+   /**
+    * Whether the current user may release this quarantine, which for a
+    * folder or controller wide one lifts it everywhere
+    */
+   public boolean canRelease() {
+      return scope == null || hasScopePermission(scope);
+   }
+
+   public String getQuarantinedBy() {
+      return quarantinedBy;
    }
 
    public String getReason() {
@@ -89,6 +476,17 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
       return new Date(this.quarantineDate.getTime());
    }
 
+   /**
+    * When this quarantine ends, null if it doesn't
+    */
+   public Date getExpiry() {
+      return expiry != null ? new Date(expiry.getTime()) : null;
+   }
+
+   public boolean isExpired(long now) {
+      return expiry != null && expiry.getTime() <= now;
+   }
+
    public boolean hasReason() {
       return !StringUtils.isEmpty(reason);
    }
@@ -118,10 +516,41 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
    }
 
    public void quarantine(String quarantinedBy, String reason, Date date) {
+      apply(quarantinedBy, reason, date);
+      owner.quarantineChanged();
+   }
+
+   public void quarantine(QuarantineRecord record, String scope) {
+      apply(record.getQuarantinedBy(), record.getReason(), record.getDate());
+      this.expiry = record.getExpiry();
+      this.scope = scope;
+      owner.quarantineChanged();
+   }
+
+   public void quarantineByRule(String rule, Date date) {
+      apply(ACL.SYSTEM.getName(), Messages.QuarantineTestAction_RuleReason(rule), date);
+      this.rule = rule;
+      owner.quarantineChanged();
+   }
+
+   private void apply(String quarantinedBy, String reason, Date date) {
       this.quarantined = true;
       this.quarantinedBy = quarantinedBy;
       this.reason = reason;
       this.quarantineDate = new Date(date.getTime());
+      this.expiry = null;
+      this.rule = null;
+      this.scope = null;
+      this.passStreak = 0;
+      this.lastFailure = null;
+      this.runs = 0;
+      this.failures = 0;
+      this.totalDuration = 0;
+      this.rollingDuration = 0;
+      this.signatures = null;
+      this.signature = FailureSignature.NONE;
+      this.newSignature = false;
+      this.version++;
       owner.addQuarantine(testObjectId, this);
    }
 
@@ -130,21 +559,107 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
    }
 
    public void quarantine(QuarantineTestAction action) {
-      quarantine(action.quarantinedByName(), action.getReason(), action.getDate());
+      apply(action.quarantinedBy, action.getReason(), action.getDate());
+      this.expiry = action.getExpiry();
+      this.version = action.version;
+      owner.quarantineChanged();
    }
 
    public void release() {
+      release(null);
+   }
+
+   public void release(String releasedBy) {
       this.quarantined = false;
       this.quarantinedBy = null;
       this.quarantineDate = null;
+      this.expiry = null;
+      this.rule = null;
+      this.scope = null;
+      this.releasedBy = releasedBy;
+      this.releaseDate = new Date();
+      this.version++;
       // we remember the reason to show it if someone puts this test back in
-      // quarantine.
+      // quarantine, and the streak to show why it was released.
+      owner.resetOutcomes(testObjectId);
+      owner.quarantineChanged();
+   }
+
+   /**
+    * Writes this quarantine in the {@link QuarantineDataFormat}
+    */
+   void write(DataOutputStream out) throws IOException {
+      QuarantineDataFormat.writeString(out, testObjectId);
+      out.writeBoolean(quarantined);
+      QuarantineDataFormat.writeString(out, quarantinedBy);
+      QuarantineDataFormat.writeDate(out, quarantineDate);
+      QuarantineDataFormat.writeDate(out, expiry);
+      QuarantineDataFormat.writeString(out, reason);
+      QuarantineDataFormat.writeString(out, rule);
+      QuarantineDataFormat.writeString(out, scope);
+      out.writeInt(passStreak);
+      QuarantineDataFormat.writeDate(out, lastFailure);
+      out.writeInt(runs);
+      out.writeInt(failures);
+      out.writeDouble(totalDuration);
+      out.writeDouble(rollingDuration);
+      QuarantineDataFormat.writeString(out, releasedBy);
+      QuarantineDataFormat.writeDate(out, releaseDate);
+      out.writeInt(version);
+      out.writeLong(signature);
+      out.writeBoolean(newSignature);
+      int count = signatures != null ? signatures.length : 0;
+      out.writeByte(count);
+      for (int i = 0; i < count; i++) {
+         out.writeLong(signatures[i]);
+      }
+   }
+
+   static QuarantineTestAction read(Data owner, DataInputStream in, int format) throws IOException {
+      QuarantineTestAction action = new QuarantineTestAction(owner, QuarantineDataFormat.readString(in));
+      action.quarantined = in.readBoolean();
+      action.quarantinedBy = QuarantineDataFormat.readString(in);
+      action.quarantineDate = QuarantineDataFormat.readDate(in);
+      action.expiry = QuarantineDataFormat.readDate(in);
+      action.reason = QuarantineDataFormat.readString(in);
+      action.rule = QuarantineDataFormat.readString(in);
+      action.scope = QuarantineDataFormat.readString(in);
+      action.passStreak = in.readInt();
+      action.lastFailure = QuarantineDataFormat.readDate(in);
+      action.runs = in.readInt();
+      action.failures = in.readInt();
+      action.totalDuration = in.readDouble();
+      action.rollingDuration = in.readDouble();
+      action.releasedBy = QuarantineDataFormat.readString(in);
+      action.releaseDate = QuarantineDataFormat.readDate(in);
+      action.version = in.readInt();
+      if (format >= 2) {
+         action.signature = in.readLong();
+         action.newSignature = in.readBoolean();
+         int count = in.readUnsignedByte();
+         if (count > 0) {
+            action.signatures = new long[count];
+            for (int i = 0; i < count; i++) {
+               action.signatures[i] = in.readLong();
+            }
+         }
+      }
+      return action;
+   }
+
+   /**
+    * Adopts a quarantine read from an old build.xml, where it was stored with
+    * its owner and possibly an id from before the junit prefix.
+    */
+   void migrate(Data owner, String testObjectId) {
+      this.owner = owner;
+      this.testObjectId = testObjectId;
    }
 
    @Override
    public String toString() {
       return "QuarantineTestAction(quarantined=" + quarantined + ",quarantinedBy=" + quarantinedBy + ",reason="
-            + reason + ")";
+            + reason + ",rule=" + rule + ",scope=" + scope + ")";
    }
 
 }
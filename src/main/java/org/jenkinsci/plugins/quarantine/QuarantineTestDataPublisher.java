@@ -6,32 +6,215 @@ import hudson.Launcher;
 import hudson.model.*;
 import hudson.tasks.junit.*;
 import hudson.tasks.test.AbstractTestResultAction;
+import hudson.util.FormValidation;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import javax.annotation.Nonnull;
 
 public class QuarantineTestDataPublisher extends TestDataPublisher {
 
+   private static final Logger LOGGER = Logger.getLogger(QuarantineTestDataPublisher.class.getName());
+
+   private static final long DAY = 24L * 60 * 60 * 1000;
+
+   static final int DEFAULT_FLAKINESS_WINDOW = 30;
+
+   private String rules;
+   private int autoReleasePasses;
+   private int autoReleaseDays;
+   private boolean notifyOnAutoRelease;
+   private int flakinessWindow;
+   private double flakinessThreshold;
+   private boolean autoQuarantineFlaky;
+
+   private transient volatile QuarantineRuleMatcher matcher;
+
    @DataBoundConstructor
    public QuarantineTestDataPublisher() {
    }
 
+   public String getRules() {
+      return rules;
+   }
+
+   /**
+    * Rules quarantining every test whose name matches, one per line. See
+    * {@link QuarantineRuleMatcher} for the syntax.
+    */
+   @DataBoundSetter
+   public void setRules(String rules) {
+      this.rules = rules;
+      this.matcher = null;
+   }
+
+   public int getAutoReleasePasses() {
+      return autoReleasePasses;
+   }
+
+   /**
+    * Releases a test after passing this many builds in a row, 0 disables it
+    */
+   @DataBoundSetter
+   public void setAutoReleasePasses(int autoReleasePasses) {
+      this.autoReleasePasses = Math.max(0, autoReleasePasses);
+   }
+
+   public int getAutoReleaseDays() {
+      return autoReleaseDays;
+   }
+
+   /**
+    * Releases a passing test that has not failed for this many days, 0
+    * disables it
+    */
+   @DataBoundSetter
+   public void setAutoReleaseDays(int autoReleaseDays) {
+      this.autoReleaseDays = Math.max(0, autoReleaseDays);
+   }
+
+   public boolean isNotifyOnAutoRelease() {
+      return notifyOnAutoRelease;
+   }
+
+   @DataBoundSetter
+   public void setNotifyOnAutoRelease(boolean notifyOnAutoRelease) {
+      this.notifyOnAutoRelease = notifyOnAutoRelease;
+   }
+
+   public int getFlakinessWindow() {
+      return flakinessWindow > 0 ? flakinessWindow : DEFAULT_FLAKINESS_WINDOW;
+   }
+
+   /**
+    * Number of latest outcomes the flakiness score is computed from, at most
+    * {@link OutcomeWindow#MAX_SIZE}
+    */
+   @DataBoundSetter
+   public void setFlakinessWindow(int flakinessWindow) {
+      this.flakinessWindow = Math.max(0, Math.min(flakinessWindow, OutcomeWindow.MAX_SIZE));
+   }
+
+   public double getFlakinessThreshold() {
+      return flakinessThreshold;
+   }
+
+   /**
+    * Tests scoring at least this are suggested for quarantine, 0 disables it
+    */
+   @DataBoundSetter
+   public void setFlakinessThreshold(double flakinessThreshold) {
+      this.flakinessThreshold = Math.max(0, Math.min(flakinessThreshold, 1));
+   }
+
+   public boolean isAutoQuarantineFlaky() {
+      return autoQuarantineFlaky;
+   }
+
+   /**
+    * Quarantines tests scoring at least the threshold rather than only
+    * suggesting it
+    */
+   @DataBoundSetter
+   public void setAutoQuarantineFlaky(boolean autoQuarantineFlaky) {
+      this.autoQuarantineFlaky = autoQuarantineFlaky;
+   }
+
+   /**
+    * Whether the auto release policy says this quarantine should end. Only
+    * looks at the streak kept on the action, never at the test history.
+    *
+    * @return why the quarantine ends, from the criterion that was met, or
+    *         null if it doesn't
+    */
+   String getReleaseReason(QuarantineTestAction action, long now) {
+      if (action.isInherited() || action.getPassStreak() == 0) {
+         return null;
+      }
+      if (autoReleasePasses > 0 && action.getPassStreak() >= autoReleasePasses) {
+         return Messages.QuarantineTestAction_PassStreakReason(action.getPassStreak());
+      }
+      if (autoReleaseDays > 0) {
+         Date since = action.getLastFailure() != null ? action.getLastFailure() : action.getDate();
+         long days = (now - since.getTime()) / DAY;
+         if (days >= autoReleaseDays) {
+            return Messages.QuarantineTestAction_NoFailureReason(days);
+         }
+      }
+      return null;
+   }
+
+   QuarantineRuleMatcher getMatcher() {
+      QuarantineRuleMatcher m = matcher;
+      if (m == null) {
+         m = QuarantineRuleMatcher.compile(rules);
+         matcher = m;
+      }
+      return m;
+   }
+
    @Override
    public Data contributeTestData(Run<?, ?> run, @Nonnull FilePath workspace, Launcher launcher,
                                   TaskListener listener, TestResult testResult) {
       Data data = new Data(run);
+      data.flakinessThreshold = flakinessThreshold;
+      data.beginUpdate();
 
       MailNotifier notifier = new MailNotifier(listener);
+      QuarantineRuleMatcher jobRules = getMatcher();
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      QuarantineRuleMatcher globalRules = config != null ? config.getMatcher() : QuarantineRuleMatcher.EMPTY;
+      GlobalQuarantine global = GlobalQuarantine.get();
+      boolean hasGlobal = !global.isEmpty();
+      Date now = new Date();
+      FlakinessStore.JobWindows outcomes = FlakinessStore.get().forJob(run.getParent());
+      int window = getFlakinessWindow();
+
+      // a brand new job (e.g. a new branch) has no history to carry
+      // quarantines over from, start it with those of its default branch
+      Map<String, QuarantineRecord> seed = null;
+      if (run.getPreviousCompletedBuild() == null) {
+         seed = QuarantineIndex.get().findSeed(run.getParent());
+      }
+
+      // quarantines of tests that haven't run in the latest build are kept
+      // here until they are pruned as stale
+      QuarantineIndex.Snapshot known = QuarantineIndex.get().get(run.getParent().getFullName());
+
+      // to continue the pass counts of tests that were quarantined already
+      Map<String, QuarantineSummary.Entry> previousSummary = null;
+      if (run.getPreviousCompletedBuild() != null) {
+         previousSummary = QuarantineSummary.read(QuarantineSummary.getFile(run.getPreviousCompletedBuild()));
+      }
 
       for (SuiteResult suite : testResult.getSuites()) {
          for (CaseResult result : suite.getCases()) {
+            if (!result.isSkipped()) {
+               outcomes.record(result.getId(), !result.isPassed(), window, run.getNumber());
+            }
+
             QuarantineTestAction previousAction = null;
             CaseResult previous = result.getPreviousResult();
             Run previousBuild = run.getPreviousCompletedBuild();
@@ -55,6 +238,14 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
                   if (tr != null) {
                      listener.getLogger().println("found " + tr.getDisplayName() + " in build " + previousBuild);
                      previousAction = tr.getTestAction(QuarantineTestAction.class);
+                     if (previousAction != null && previousAction.isQuarantined() && known != null
+                             && known.getBuild() > previousBuild.getNumber()
+                             && !known.getRecords().containsKey(result.getId())) {
+                        // not carried over since, it was pruned as stale
+                        listener.getLogger().println("[Quarantine]: stale quarantine of " + result.getFullName()
+                                + " was pruned, not carrying it over");
+                        previousAction = null;
+                     }
                      break;
                   }
                }
@@ -65,18 +256,138 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
                previousBuild = previousBuild.getPreviousCompletedBuild();
             }
 
-            if (previousAction != null && previousAction.isQuarantined()) {
-               QuarantineTestAction action = new QuarantineTestAction(data, result.getId());
-               action.quarantine(previousAction);
-               data.addQuarantine(result.getId(), action);
+            QuarantineTestAction action = null;
+            if (previousAction != null) {
+               // the previous build may be changed from the UI (or a bulk
+               // operation) while we are recording, so copy under its lock.
+               // Rule and folder/global quarantines are not carried over,
+               // they are looked up afresh below.
+               synchronized (previousAction.owner) {
+                  // changes made to the previous build from now on are
+                  // passed on to this one
+                  previousAction.owner.setSuccessor(data);
+                  if (previousAction.isQuarantined() && !previousAction.isInherited()) {
+                     action = new QuarantineTestAction(data, result.getId());
+                     action.quarantine(previousAction);
+                     if (action.isExpired(now.getTime())) {
+                        // keep the expired copy as the record of its release
+                        listener.getLogger().println("[Quarantine]: quarantine of " + result.getFullName() + " expired");
+                        action.release(QuarantineTestAction.EXPIRY);
+                        QuarantineAuditLog.record(QuarantineAuditLog.Type.EXPIRY, run.getParent().getFullName(),
+                                null, result.getId(), null, null);
+                        QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.EXPIRED,
+                                run.getParent().getFullName(), run.getNumber(), result.getId(), result.getFullName(),
+                                previousAction.getQuarantinedBy(), null));
+                        action = null;
+                     }
+                  }
+               }
+            }
+
+            if (action == null && previousAction == null && seed != null) {
+               QuarantineRecord record = seed.get(result.getId());
+               if (record != null && !record.isExpired(now.getTime())) {
+                  listener.getLogger().println("[Quarantine]: " + result.getFullName() + " quarantined on default branch");
+                  action = new QuarantineTestAction(data, result.getId());
+                  action.quarantine(record, null);
+               }
+            }
+
+            if (action == null && hasGlobal) {
+               Map.Entry<String, QuarantineRecord> wide = global.find(run.getParent(), result.getId());
+               if (wide != null && !wide.getValue().isExpired(now.getTime())) {
+                  action = new QuarantineTestAction(data, result.getId());
+                  action.quarantine(wide.getValue(), wide.getKey());
+               }
+            }
+
+            if (action == null) {
+               String rule = jobRules.match(result.getFullName());
+               if (rule == null) {
+                  rule = globalRules.match(result.getFullName());
+               }
+               if (rule != null) {
+                  // still the same quarantine while the same rule matches
+                  Date since = previousAction != null && previousAction.isQuarantined()
+                          && rule.equals(previousAction.getRule()) ? previousAction.getDate() : now;
+                  action = new QuarantineTestAction(data, result.getId());
+                  action.quarantineByRule(rule, since);
+               }
+            }
+
+            if (action == null && autoQuarantineFlaky && flakinessThreshold > 0) {
+               double score = outcomes.getScore(result.getId());
+               if (score >= flakinessThreshold) {
+                  String reason = Messages.QuarantineTestAction_FlakinessReason(Math.round(score * 100));
+                  listener.getLogger().println("[Quarantine]: " + result.getFullName() + " quarantined, " + reason);
+                  action = new QuarantineTestAction(data, result.getId());
+                  action.quarantine(QuarantineTestAction.FLAKINESS, reason, now);
+                  QuarantineAuditLog.record(QuarantineAuditLog.Type.QUARANTINE, run.getParent().getFullName(), null,
+                          result.getId(), QuarantineTestAction.FLAKINESS, reason);
+                  QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.QUARANTINED,
+                          run.getParent().getFullName(), run.getNumber(), result.getId(), result.getFullName(),
+                          QuarantineTestAction.FLAKINESS, reason));
+               }
+            }
+
+            if (action != null) {
+               action.trackOutcome(previousAction, result, now);
+               String releaseReason = getReleaseReason(action, now.getTime());
+               if (releaseReason != null) {
+                  String quarantinedBy = action.getQuarantinedBy();
+                  listener.getLogger().println("[Quarantine]: " + result.getFullName()
+                          + " released from quarantine, " + releaseReason);
+                  action.release(QuarantineTestAction.AUTO_RELEASE);
+                  QuarantineAuditLog.record(QuarantineAuditLog.Type.AUTO_RELEASE, run.getParent().getFullName(),
+                          null, result.getId(), null, releaseReason);
+                  QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.AUTO_RELEASED,
+                          run.getParent().getFullName(), run.getNumber(), result.getId(), result.getFullName(),
+                          quarantinedBy, releaseReason));
+                  if (notifyOnAutoRelease) {
+                     notifier.addRelease(quarantinedBy, result, action);
+                  }
+                  action = null;
+               }
+            }
+
+            // send email if failed, rules don't have anybody to tell. A test
+            // failing the same way as before was told about already, but
+            // still counts in a digest.
+            boolean repeated = action != null && action.getSignature() != null && !action.isNewSignature();
+            if (action != null && !result.isPassed() && !action.isRuleBased()) {
+               notifier.addResult(result, action, repeated);
+            }
+            if (action != null && !result.isPassed() && !result.isSkipped() && !repeated) {
+               QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.QUARANTINED_TEST_FAILED,
+                       run.getParent().getFullName(), run.getNumber(), result.getId(), result.getFullName(),
+                       action.getQuarantinedBy(), action.getReason()));
+            }
 
-               // send email if failed
+            if (action != null) {
+               QuarantineSummary.Entry previousEntry = previousSummary != null
+                       ? previousSummary.get(result.getId()) : null;
+               int passes;
                if (!result.isPassed()) {
-                  notifier.addResult(result, action);
+                  passes = 0;
+               } else if (previousEntry != null && previousEntry.isPassed()) {
+                  passes = previousEntry.getPasses() + 1;
+               } else if (previousEntry != null) {
+                  passes = 1;
+               } else {
+                  // no summary to continue from, the streak since the test
+                  // was quarantined is close enough
+                  passes = action.getPassStreak();
                }
+               data.recorded(result, passes);
             }
          }
       }
+      data.endUpdate(true);
+      try {
+         outcomes.save(run.getNumber());
+      } catch (IOException e) {
+         listener.getLogger().println("[Quarantine]: failed saving test outcomes: " + e);
+      }
       notifier.sendEmails();
       return data;
 
@@ -85,10 +396,50 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
 
    public static class Data extends TestResultAction.Data implements Saveable {
 
-      private Map<String, QuarantineTestAction> quarantines = new HashMap<>();
+      private transient Map<String, QuarantineTestAction> actions = new HashMap<>();
 
       private final Run<?, ?> build;
 
+      /**
+       * The quarantines as stored before there was a compact format, only set
+       * while reading such a build
+       */
+      private Map<String, QuarantineTestAction> quarantines;
+
+      /** version of the {@link QuarantineDataFormat} of {@link #state} */
+      private int format;
+
+      /** the quarantines in the {@link QuarantineDataFormat} */
+      private String state;
+
+      /**
+       * State that couldn't be decoded, e.g. written by a newer version of
+       * the plugin, with its format. It is written back as it was rather
+       * than replaced by the nothing that was read.
+       */
+      private transient String undecodedState;
+      private transient int undecodedFormat;
+
+      /** number of batch changes in progress, the index is updated once they are done */
+      private transient int updates;
+
+      /** flakiness score from which tests are suggested for quarantine, 0 if they aren't */
+      double flakinessThreshold;
+
+      /** results of the quarantined tests as recorded, for the summary */
+      private transient Map<String, QuarantineSummary.Entry> recorded;
+
+      /**
+       * The data of the next build, once it copied quarantines from this one.
+       * Weak so a chain of builds doesn't keep each other loaded.
+       */
+      private transient WeakReference<Data> successor;
+
+      private transient QuarantineResultAction resultAction;
+
+      /** the quarantines as served by the API, null until asked for or after a change */
+      private transient volatile byte[] json;
+
       Data(Run<?, ?> build) {
          this.build = build;
       }
@@ -106,16 +457,13 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
                return Collections.emptyList();
          }}
 
-         final String prefix = "junit";
-         String id = testObject.getId();
-         QuarantineTestAction result = quarantines.get(id);
-
-         // In Hudson 1.347 or so, IDs changed, and a junit/ prefix was added.
-         // Attempt to fix this backward-incompatibility
-         if (result == null && id.startsWith(prefix)) {
-            result = quarantines.get(id.substring(prefix.length()));
+         if (testObject instanceof hudson.tasks.junit.TestResult) {
+            return Collections.<TestAction>singletonList(getResultAction());
          }
 
+         String id = testObject.getId();
+         QuarantineTestAction result = actions.get(id);
+
          if (result != null) {
             return Collections.singletonList(result);
          }
@@ -126,6 +474,69 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
          return Collections.emptyList();
       }
 
+      /**
+       * Stores the quarantines in the compact format rather than as an XML
+       * element per field of each of them.
+       */
+      protected synchronized Object writeReplace() throws IOException {
+         Data stored = new Data(build);
+         stored.flakinessThreshold = flakinessThreshold;
+         if (undecodedState != null) {
+            stored.format = undecodedFormat;
+            stored.state = undecodedState;
+            return stored;
+         }
+         stored.format = QuarantineDataFormat.VERSION;
+         stored.state = QuarantineDataFormat.encode(actions.values());
+         return stored;
+      }
+
+      protected Object readResolve() {
+         actions = new HashMap<>();
+         if (state != null) {
+            try {
+               for (QuarantineTestAction action : QuarantineDataFormat.decode(this, state, format)) {
+                  actions.put(action.getTestObjectId(), action);
+               }
+            } catch (IOException | RuntimeException e) {
+               LOGGER.log(Level.WARNING, "failed reading the quarantines of " + build + ", keeping them as they are",
+                     e);
+               actions.clear();
+               undecodedState = state;
+               undecodedFormat = format;
+            }
+         } else if (quarantines != null) {
+            // the old format, rewritten in the new one when the build is saved
+            for (Map.Entry<String, QuarantineTestAction> entry : quarantines.entrySet()) {
+               String id = normalizeId(entry.getKey());
+               entry.getValue().migrate(this, id);
+               actions.put(id, entry.getValue());
+            }
+         }
+         quarantines = null;
+         state = null;
+         return this;
+      }
+
+      /**
+       * Ids of builds from before Hudson 1.347 or so lack the junit prefix
+       */
+      static String normalizeId(String id) {
+         return id.startsWith("/") ? "junit" + id : id;
+      }
+
+      Job<?, ?> getJob() {
+         return build.getParent();
+      }
+
+      int getBuildNumber() {
+         return build.getNumber();
+      }
+
+      long getBuildTime() {
+         return build.getTimeInMillis();
+      }
+
       boolean isLatestResult() {
          return build.getParent().getLastCompletedBuild() == build;
       }
@@ -142,8 +553,358 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
          build.save();
       }
 
-      public void addQuarantine(String testObjectId, QuarantineTestAction quarantine) {
-         quarantines.put(testObjectId, quarantine);
+      public synchronized void addQuarantine(String testObjectId, QuarantineTestAction quarantine) {
+         actions.put(testObjectId, quarantine);
+         json = null;
+      }
+
+      synchronized QuarantineResultAction getResultAction() {
+         if (resultAction == null) {
+            resultAction = new QuarantineResultAction(this);
+         }
+         return resultAction;
+      }
+
+      /**
+       * The quarantined tests of this build as JSON, serialized once and kept
+       * until one of them changes.
+       */
+      byte[] getJson() {
+         byte[] bytes = json;
+         if (bytes != null) {
+            return bytes;
+         }
+         synchronized (this) {
+            if (json == null) {
+               JSONArray tests = new JSONArray();
+               for (QuarantineTestAction action : actions.values()) {
+                  if (action.isQuarantined()) {
+                     tests.add(QuarantineResultAction.toJSON(action));
+                  }
+               }
+               JSONObject result = new JSONObject();
+               result.put("build", build.getNumber());
+               result.put("quarantined", tests);
+               json = result.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return json;
+         }
+      }
+
+      synchronized void beginUpdate() {
+         updates++;
+      }
+
+      /**
+       * Ends a batch of changes.
+       *
+       * @param force publish even if this is not the latest completed build,
+       *              as is the case while the build is recording its results
+       */
+      void endUpdate(boolean force) {
+         synchronized (this) {
+            updates--;
+            json = null;
+         }
+         if (force) {
+            publish();
+         } else {
+            quarantineChanged();
+         }
+      }
+
+      /**
+       * Called whenever the state of one of the quarantines changed.
+       */
+      void quarantineChanged() {
+         synchronized (this) {
+            json = null;
+            if (updates > 0) {
+               return;
+            }
+         }
+         if (isLatestResult()) {
+            publish();
+         }
+      }
+
+      /**
+       * Starts the flakiness score of a released test afresh, or the flips
+       * that got it quarantined would put it right back. Written by
+       * {@link #flushOutcomes()} once the change is done, or with the
+       * outcomes of the build being recorded.
+       */
+      void resetOutcomes(String testObjectId) {
+         FlakinessStore.get().forJob(getJob()).reset(testObjectId);
+      }
+
+      /**
+       * Writes the flakiness scores reset by a change, once for all the tests
+       * and builds it released. Called without holding the lock.
+       */
+      void flushOutcomes() {
+         try {
+            FlakinessStore.get().forJob(getJob()).flush();
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed saving test outcomes of " + getJob(), e);
+         }
+      }
+
+      synchronized void setSuccessor(Data data) {
+         if (data != this) {
+            successor = new WeakReference<>(data);
+         }
+      }
+
+      /**
+       * Passes a change of one of this build's quarantines on to the builds
+       * that already copied their quarantines from it, so a change made
+       * while the next build is recording isn't lost. The caller holds the
+       * lock of this data, the lock of each following build is only held
+       * while changing it.
+       *
+       * @return the builds that were changed after they were done recording,
+       *         for the caller to {@link #saveAll(Collection) save} once it
+       *         let go of its lock
+       */
+      List<Data> propagate(QuarantineTestAction source) {
+         List<Data> changed = new ArrayList<>();
+         String id = source.getTestObjectId();
+         Data next = successor != null ? successor.get() : null;
+         while (next != null) {
+            synchronized (next) {
+               QuarantineTestAction target = next.actions.get(id);
+               if (source.isQuarantined() && !source.isInherited()) {
+                  if (target == null) {
+                     target = new QuarantineTestAction(next, id);
+                  }
+                  target.quarantine(source);
+               } else if (!source.isQuarantined() && target != null && target.isQuarantined()
+                       && !target.isInherited()) {
+                  target.release(source.getReleasedBy());
+               } else {
+                  break;
+               }
+               if (!next.build.isBuilding()) {
+                  // done recording, it won't be saved by the build anymore
+                  changed.add(next);
+               }
+               next = next.successor != null ? next.successor.get() : null;
+            }
+         }
+         return changed;
+      }
+
+      /**
+       * Saves the builds a change was passed on to. Must be called without
+       * holding the lock of any data: saving a build locks the build and then
+       * its data, while a change locks the data first.
+       */
+      static void saveAll(Collection<Data> builds) {
+         for (Data data : builds) {
+            try {
+               data.save();
+            } catch (IOException e) {
+               LOGGER.log(Level.WARNING, "failed saving " + data.build, e);
+            }
+         }
+      }
+
+      synchronized void recorded(CaseResult result, int passes) {
+         if (recorded == null) {
+            recorded = new HashMap<>();
+         }
+         recorded.put(result.getId(), QuarantineSummary.Entry.of(result, passes));
+      }
+
+      /**
+       * Publishes this build's own quarantines to the {@link QuarantineIndex}
+       * and writes its {@link QuarantineSummary}.
+       */
+      void publish() {
+         Map<String, QuarantineRecord> records = new HashMap<>();
+         Set<String> present;
+         synchronized (this) {
+            for (QuarantineTestAction action : actions.values()) {
+               if (action.isQuarantined() && !action.isInherited()) {
+                  records.put(action.getTestObjectId(), QuarantineRecord.of(action));
+               }
+            }
+            present = new HashSet<>(actions.keySet());
+            writeSummary();
+         }
+         QuarantineIndex.get().publish(build.getParent(), build.getNumber(), records, present);
+      }
+
+      /**
+       * Writes the summary of all quarantined tests. Their results come from
+       * recording, from the summary written before, or, for tests that were
+       * quarantined after recording, from the test result itself.
+       */
+      private void writeSummary() {
+         File file = QuarantineSummary.getFile(build);
+         Map<String, QuarantineSummary.Entry> written = null;
+         List<QuarantineSummary.Entry> entries = new ArrayList<>();
+         for (QuarantineTestAction action : actions.values()) {
+            if (!action.isQuarantined()) {
+               continue;
+            }
+            String id = action.getTestObjectId();
+            QuarantineSummary.Entry entry = recorded != null ? recorded.get(id) : null;
+            if (entry == null) {
+               if (written == null) {
+                  written = QuarantineSummary.read(file);
+                  if (written == null) {
+                     written = Collections.emptyMap();
+                  }
+               }
+               entry = written.get(id);
+            }
+            if (entry == null) {
+               hudson.tasks.test.TestResult result = getResultForTestId(id);
+               if (result instanceof CaseResult) {
+                  entry = QuarantineSummary.Entry.of((CaseResult) result, action.getPassStreak());
+               }
+            }
+            if (entry != null) {
+               entries.add(entry.with(action));
+            }
+         }
+         try {
+            QuarantineSummary.write(file, entries);
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed writing " + file, e);
+         }
+      }
+
+      /**
+       * Puts all given tests in quarantine and persists the build once, rather
+       * than once per test. Tests that are already quarantined are left alone.
+       *
+       * @return the number of tests whose state changed
+       */
+      public int quarantineAll(Collection<String> testObjectIds, String quarantinedBy, String reason)
+            throws IOException {
+         List<String> changed = new ArrayList<>();
+         Set<Data> successors = new LinkedHashSet<>();
+         synchronized (this) {
+            beginUpdate();
+            try {
+               Date now = new Date();
+               for (String id : testObjectIds) {
+                  QuarantineTestAction action = actions.get(id);
+                  if (action == null) {
+                     action = new QuarantineTestAction(this, id);
+                  }
+                  if (!action.isQuarantined()) {
+                     action.quarantine(quarantinedBy, reason, now);
+                     successors.addAll(propagate(action));
+                     changed.add(id);
+                  }
+               }
+            } finally {
+               endUpdate(false);
+            }
+         }
+         // logged outside the lock, the audit log may be busy
+         for (String id : changed) {
+            QuarantineAuditLog.record(QuarantineAuditLog.Type.QUARANTINE, getJob().getFullName(), null, id,
+                  quarantinedBy, reason);
+            QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.QUARANTINED,
+                  getJob().getFullName(), build.getNumber(), id, null, quarantinedBy, reason));
+         }
+         if (!changed.isEmpty()) {
+            save();
+         }
+         saveAll(successors);
+         return changed.size();
+      }
+
+      /**
+       * Releases all given tests from quarantine and persists the build once.
+       * Folder and controller wide quarantines the current user may not
+       * release are left alone.
+       *
+       * @return the number of tests whose state changed
+       */
+      public int releaseAll(Collection<String> testObjectIds, String releasedBy) throws IOException {
+         // the released tests with the scope they were quarantined in
+         Map<String, String> changed = new LinkedHashMap<>();
+         Set<Data> successors = new LinkedHashSet<>();
+         synchronized (this) {
+            beginUpdate();
+            try {
+               for (String id : testObjectIds) {
+                  QuarantineTestAction action = actions.get(id);
+                  if (action != null && action.isQuarantined() && action.canRelease()) {
+                     String scope = action.getScope();
+                     if (scope != null) {
+                        // or the next build would quarantine it again
+                        GlobalQuarantine.get().remove(scope, id);
+                     }
+                     action.release(releasedBy);
+                     successors.addAll(propagate(action));
+                     changed.put(id, scope);
+                  }
+               }
+            } finally {
+               endUpdate(false);
+            }
+         }
+         for (Map.Entry<String, String> entry : changed.entrySet()) {
+            QuarantineAuditLog.record(QuarantineAuditLog.Type.RELEASE, getJob().getFullName(), entry.getValue(),
+                  entry.getKey(), releasedBy, null);
+            QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.RELEASED,
+                  getJob().getFullName(), build.getNumber(), entry.getKey(), null, releasedBy, null));
+         }
+         if (!changed.isEmpty()) {
+            save();
+         }
+         saveAll(successors);
+         flushOutcomes();
+         return changed.size();
+      }
+
+      /**
+       * Releases a test whose quarantine ran out.
+       *
+       * @return whether anything changed
+       */
+      boolean expire(String testObjectId) {
+         String quarantinedBy;
+         List<Data> successors;
+         synchronized (this) {
+            QuarantineTestAction action = actions.get(testObjectId);
+            if (action == null || !action.isQuarantined() || !action.isExpired(System.currentTimeMillis())) {
+               return false;
+            }
+            quarantinedBy = action.getQuarantinedBy();
+            action.release(QuarantineTestAction.EXPIRY);
+            successors = propagate(action);
+         }
+         saveAll(successors);
+         flushOutcomes();
+         QuarantineAuditLog.record(QuarantineAuditLog.Type.EXPIRY, getJob().getFullName(), null, testObjectId, null,
+               null);
+         QuarantineEventBus.publish(new QuarantineEvent(QuarantineEvent.Type.EXPIRED, getJob().getFullName(),
+               getBuildNumber(), testObjectId, null, quarantinedBy, null));
+         return true;
+      }
+
+      /**
+       * Finds the quarantine data of a build through one of its test results.
+       */
+      static Data forTest(Run<?, ?> build, String testObjectId) {
+         TestResultAction action = build.getAction(TestResultAction.class);
+         if (action == null || action.getResult() == null) {
+            return null;
+         }
+         hudson.tasks.test.TestResult tr = action.getResult().findCorrespondingResult(testObjectId);
+         if (tr == null) {
+            return null;
+         }
+         QuarantineTestAction quarantineAction = tr.getTestAction(QuarantineTestAction.class);
+         return quarantineAction != null ? quarantineAction.owner : null;
       }
 
    }
@@ -159,6 +920,11 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
       public String getDisplayName() {
          return Messages.QuarantineTestDataPublisher_DisplayName();
       }
+
+      public FormValidation doCheckRules(@QueryParameter String value) {
+         String problem = QuarantineRuleMatcher.check(value);
+         return problem != null ? FormValidation.error(problem) : FormValidation.ok();
+      }
    }
 
 }
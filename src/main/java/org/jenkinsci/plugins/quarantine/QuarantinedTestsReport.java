@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.quarantine;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.TopLevelItem;
 import hudson.model.Hudson;
 import hudson.model.Job;
@@ -11,15 +12,44 @@ import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.test.TestResult;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 @Extension
 public class QuarantinedTestsReport implements RootAction {
 
+   /**
+    * Separates the job name from the test id in a selection. Job names can't
+    * contain it, so we split on its first occurrence.
+    */
+   static final char SELECTION_SEPARATOR = '|';
+
+   private static final long DEFAULT_AUDIT_LIMIT = 1000;
+   private static final long MAX_AUDIT_LIMIT = 10000;
+
    public QuarantinedTestsReport() {
    }
 
@@ -46,24 +76,234 @@ public class QuarantinedTestsReport implements RootAction {
       return test.getTestAction(QuarantineTestAction.class);
    }
 
+   /**
+    * One row of the report
+    */
+   public static final class Row {
+      private final Job<?, ?> job;
+      private final QuarantineSummary.Entry entry;
+
+      Row(Job<?, ?> job, QuarantineSummary.Entry entry) {
+         this.job = job;
+         this.entry = entry;
+      }
+
+      public Job<?, ?> getJob() {
+         return job;
+      }
+
+      public QuarantineSummary.Entry getEntry() {
+         return entry;
+      }
+
+      public String getSelectionKey() {
+         return job.getFullName() + SELECTION_SEPARATOR + entry.getId();
+      }
+
+      public String getQuarantinedByName() {
+         return UserInfoCache.get().getDisplayName(entry.getQuarantinedBy());
+      }
+
+      public String getFlakinessPercent() {
+         double score = FlakinessStore.get().getScore(job, entry.getId());
+         return score >= 0 ? Math.round(score * 100) + "%" : "";
+      }
+
+      public String getTimeSpent() {
+         return Util.getTimeSpanString((long) (entry.getTotalDuration() * 1000));
+      }
+   }
+
+   /**
+    * The quarantined tests of the latest build of every job in the view, read
+    * from the builds' {@link QuarantineSummary}. Only builds recorded before
+    * there were summaries have their test results loaded.
+    */
+   public List<Row> getQuarantinedRows() {
+      List<Row> rows = new ArrayList<Row>();
+      for (TopLevelItem item : getOwner().getItems()) {
+         if (item instanceof Job) {
+            Job<?, ?> job = (Job<?, ?>) item;
+            Run<?, ?> lb = getLatestBuild(job);
+            if (lb == null) {
+               continue;
+            }
+            Map<String, QuarantineSummary.Entry> summary = QuarantineSummary.read(QuarantineSummary.getFile(lb));
+            if (summary != null) {
+               for (QuarantineSummary.Entry entry : summary.values()) {
+                  rows.add(new Row(job, entry));
+               }
+            } else if (lb.getAction(TestResultAction.class) != null) {
+               for (CaseResult test : getQuarantinedTests(lb)) {
+                  rows.add(new Row(job, QuarantineSummary.Entry.of(test, getNumberOfSuccessivePasses(test))
+                        .with(getAction(test))));
+               }
+            }
+         }
+      }
+      return rows;
+   }
+
+   /**
+    * What a group of quarantined tests cost, summed up from the accumulated
+    * costs of each quarantine
+    */
+   public static final class Costs implements Comparable<Costs> {
+      private final String name;
+      private int tests;
+      private int runs;
+      private int failures;
+      private double totalDuration;
+
+      Costs(String name) {
+         this.name = name;
+      }
+
+      void add(QuarantineSummary.Entry entry) {
+         tests++;
+         runs += entry.getRuns();
+         failures += entry.getFailures();
+         totalDuration += entry.getTotalDuration();
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public int getTests() {
+         return tests;
+      }
+
+      public int getRuns() {
+         return runs;
+      }
+
+      public int getFailures() {
+         return failures;
+      }
+
+      /**
+       * Seconds spent running the tests while in quarantine
+       */
+      public double getTotalDuration() {
+         return totalDuration;
+      }
+
+      public String getTimeSpent() {
+         return Util.getTimeSpanString((long) (totalDuration * 1000));
+      }
+
+      public int compareTo(Costs other) {
+         return Double.compare(other.totalDuration, totalDuration);
+      }
+   }
+
+   /**
+    * Costs of the given rows per job, most expensive first
+    */
+   public List<Costs> getCostsByJob(List<Row> rows) {
+      Map<String, Costs> costs = new LinkedHashMap<String, Costs>();
+      for (Row row : rows) {
+         add(costs, row.getJob().getFullDisplayName(), row.getEntry());
+      }
+      return sorted(costs);
+   }
+
+   /**
+    * Costs of the given rows per user who quarantined them, most expensive
+    * first
+    */
+   public List<Costs> getCostsByUser(List<Row> rows) {
+      Map<String, Costs> costs = new LinkedHashMap<String, Costs>();
+      for (Row row : rows) {
+         add(costs, row.getQuarantinedByName(), row.getEntry());
+      }
+      return sorted(costs);
+   }
+
+   public Costs getTotalCosts(List<Row> rows) {
+      Costs costs = new Costs(Messages.QuarantinedTestsReport_Total());
+      for (Row row : rows) {
+         costs.add(row.getEntry());
+      }
+      return costs;
+   }
+
+   private static void add(Map<String, Costs> costs, String name, QuarantineSummary.Entry entry) {
+      Costs c = costs.get(name);
+      if (c == null) {
+         c = new Costs(name);
+         costs.put(name, c);
+      }
+      c.add(entry);
+   }
+
+   private static List<Costs> sorted(Map<String, Costs> costs) {
+      List<Costs> list = new ArrayList<Costs>(costs.values());
+      Collections.sort(list);
+      return list;
+   }
+
+   /**
+    * Quarantines whose tests haven't run for a while, as found by the
+    * {@link StaleQuarantineDetector}, in jobs the current user can see
+    */
+   public List<UserQuarantinesAction.Entry> getStaleQuarantines() {
+      List<UserQuarantinesAction.Entry> entries = new ArrayList<UserQuarantinesAction.Entry>();
+      Jenkins jenkins = Jenkins.getInstance();
+      for (Map.Entry<String, List<QuarantineRecord>> e : StaleQuarantineDetector.get().getStale().entrySet()) {
+         Job<?, ?> job = jenkins.getItemByFullName(e.getKey(), Job.class);
+         if (job == null) {
+            continue;
+         }
+         // the tests didn't run in the latest build, take them from the
+         // build they were last seen in, read once per build
+         Map<Integer, Map<String, QuarantineSummary.Entry>> summaries =
+               new HashMap<Integer, Map<String, QuarantineSummary.Entry>>();
+         for (QuarantineRecord record : e.getValue()) {
+            if (!summaries.containsKey(record.getLastSeen())) {
+               summaries.put(record.getLastSeen(), QuarantineSummary.read(job, record.getLastSeen()));
+            }
+            Map<String, QuarantineSummary.Entry> summary = summaries.get(record.getLastSeen());
+            entries.add(new UserQuarantinesAction.Entry(job, record,
+                  summary != null ? summary.get(record.getTestObjectId()) : null));
+         }
+      }
+      return entries;
+   }
+
+   private static Run<?, ?> getLatestBuild(Job<?, ?> job) {
+      Run<?, ?> lb = job.getLastBuild();
+      while (lb != null && (lb.hasntStartedYet() || lb.isBuilding()))
+         lb = lb.getPreviousBuild();
+      return lb;
+   }
+
+   private static List<CaseResult> getQuarantinedTests(Run<?, ?> lb) {
+      List<CaseResult> list = new ArrayList<CaseResult>();
+      for (SuiteResult suite : lb.getAction(TestResultAction.class).getResult().getSuites()) {
+         for (CaseResult test : suite.getCases()) {
+            QuarantineTestAction action = test.getTestAction(QuarantineTestAction.class);
+            if (action != null && action.isQuarantined()) {
+               list.add(test);
+            }
+         }
+      }
+      return list;
+   }
+
+   /**
+    * The quarantined tests of the latest build of every job in the view. This
+    * loads every one of these builds' test results, prefer
+    * {@link #getQuarantinedRows()}.
+    */
    public List<CaseResult> getQuarantinedTests() {
       ArrayList<CaseResult> list = new ArrayList<CaseResult>();
       for (TopLevelItem item : getOwner().getItems()) {
          if (item instanceof Job) {
-            Job job = (Job) item;
-            Run lb = job.getLastBuild();
-            while (lb != null && (lb.hasntStartedYet() || lb.isBuilding()))
-               lb = lb.getPreviousBuild();
-
+            Run<?, ?> lb = getLatestBuild((Job<?, ?>) item);
             if (lb != null && lb.getAction(TestResultAction.class) != null) {
-               for (SuiteResult suite : lb.getAction(TestResultAction.class).getResult().getSuites()) {
-                  for (CaseResult test : suite.getCases()) {
-                     QuarantineTestAction action = test.getTestAction(QuarantineTestAction.class);
-                     if (action != null && action.isQuarantined()) {
-                        list.add(test);
-                     }
-                  }
-               }
+               list.addAll(getQuarantinedTests(lb));
             }
          }
       }
@@ -87,4 +327,219 @@ public class QuarantinedTestsReport implements RootAction {
       return Messages.QuarantinedTestsReport_DisplayName();
    }
 
+   public boolean isUserAnonymous() {
+      return Hudson.getAuthentication().getName().equals("anonymous");
+   }
+
+   public String getSelectionKey(CaseResult test) {
+      return test.getOwner().getParent().getFullName() + SELECTION_SEPARATOR + test.getId();
+   }
+
+   /**
+    * Releases all selected tests. The selection is a list of
+    * <code>job|testId</code> values, each job's latest build is saved once.
+    */
+   @RequirePOST
+   public void doBulkRelease(StaplerRequest req, StaplerResponse rsp) throws ServletException, IOException {
+      if (isUserAnonymous()) {
+         rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+         return;
+      }
+      Map<String, List<String>> selection = parseSelection(req.getParameterValues("selected"));
+      String name = Hudson.getAuthentication().getName();
+      for (Map.Entry<Data, List<String>> entry : resolve(selection).entrySet()) {
+         entry.getKey().releaseAll(entry.getValue(), name);
+      }
+      rsp.forwardToPreviousPage(req);
+   }
+
+   /**
+    * Quarantines all given tests of one job with a single save of its latest
+    * build. Expects a <code>job</code> parameter and one <code>test</code>
+    * parameter per test id.
+    */
+   @RequirePOST
+   public void doBulkQuarantine(StaplerRequest req, StaplerResponse rsp) throws ServletException, IOException {
+      if (isUserAnonymous()) {
+         rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+         return;
+      }
+      String job = req.getParameter("job");
+      String[] tests = req.getParameterValues("test");
+      if (StringUtils.isEmpty(job) || tests == null) {
+         rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "job and test parameters are required");
+         return;
+      }
+      String reason = req.getParameter("reason");
+      if (StringUtils.isEmpty(reason))
+         reason = null;
+
+      Map<String, List<String>> selection = new LinkedHashMap<String, List<String>>();
+      selection.put(job, Arrays.asList(tests));
+      String name = Hudson.getAuthentication().getName();
+      for (Map.Entry<Data, List<String>> entry : resolve(selection).entrySet()) {
+         entry.getKey().quarantineAll(entry.getValue(), name, reason);
+      }
+      rsp.forwardToPreviousPage(req);
+   }
+
+   /**
+    * Quarantine history as JSON. With a <code>test</code> parameter all events
+    * of that test, otherwise those between <code>from</code> and
+    * <code>to</code> (milliseconds since the epoch, default the last week).
+    * Both can be narrowed down to a job or folder with <code>job</code>.
+    * Events of jobs and folders the caller can't see are left out.
+    */
+   public void doAudit(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      Jenkins jenkins = Jenkins.getInstance();
+      jenkins.checkPermission(Jenkins.READ);
+      String test = Util.fixEmpty(req.getParameter("test"));
+      String job = Util.fixEmpty(req.getParameter("job"));
+      int limit = (int) Math.max(1, Math.min(parseLong(req.getParameter("limit"), DEFAULT_AUDIT_LIMIT), MAX_AUDIT_LIMIT));
+      long now = System.currentTimeMillis();
+
+      QuarantineAuditLog log = QuarantineAuditLog.get();
+      List<QuarantineAuditLog.Event> events;
+      if (test != null) {
+         events = log.forTest(test, job, limit);
+      } else {
+         long to = parseLong(req.getParameter("to"), now);
+         long from = parseLong(req.getParameter("from"), to - TimeUnit.DAYS.toMillis(7));
+         events = log.query(from, to, job, limit);
+      }
+
+      JSONArray json = new JSONArray();
+      for (QuarantineAuditLog.Event event : events) {
+         if (isVisible(jenkins, event)) {
+            json.add(event.toJSON());
+         }
+      }
+      rsp.setContentType("application/json;charset=UTF-8");
+      json.write(rsp.getWriter());
+   }
+
+   /**
+    * Whether the job and the folder scope of an event are visible to the
+    * current user. Anybody may see changes of global quarantines.
+    */
+   private static boolean isVisible(Jenkins jenkins, QuarantineAuditLog.Event event) {
+      if (event.getJob() != null && jenkins.getItemByFullName(event.getJob(), Job.class) == null) {
+         return false;
+      }
+      String scope = event.getScope();
+      return scope == null || scope.equals(GlobalQuarantine.GLOBAL_SCOPE) || jenkins.getItemByFullName(scope) != null;
+   }
+
+   /**
+    * How event delivery to {@link QuarantineListener}s keeps up: events
+    * published, delivered, dropped because the queue was full, and waiting.
+    */
+   public void doEvents(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+      rsp.setContentType("application/json;charset=UTF-8");
+      QuarantineEventBus.get().toJSON().write(rsp.getWriter());
+   }
+
+   /**
+    * Streams the quarantines of all jobs as <code>?format=csv</code> (the
+    * default) or <code>?format=ndjson</code>, optionally only those of the job
+    * or folder given by <code>job</code>. Rows are read from the
+    * {@link QuarantineIndex} and written as they are read, and the response
+    * is gzipped if the client accepts it. Quarantines by rule or of a folder
+    * or global scope are not included.
+    */
+   public void doExport(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      String format = Util.fixEmpty(req.getParameter("format"));
+      String item = Util.fixEmpty(req.getParameter("job"));
+      QuarantineExport export = QuarantineExport.create(format != null ? format : "csv");
+      if (export == null) {
+         rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "format must be csv or ndjson");
+         return;
+      }
+      rsp.setContentType(export.getContentType());
+      rsp.setHeader("Content-Disposition", "attachment; filename=quarantine." + export.getExtension());
+      Writer out = new BufferedWriter(new OutputStreamWriter(rsp.getCompressedOutputStream(req), "UTF-8"));
+      try {
+         export.begin(out);
+         Map<String, QuarantineIndex.Snapshot> all = QuarantineIndex.get().getAll();
+         List<String> jobs = new ArrayList<String>(all.keySet());
+         Collections.sort(jobs);
+         Jenkins jenkins = Jenkins.getInstance();
+         for (String name : jobs) {
+            if (item != null && !name.equals(item) && !name.startsWith(item + "/")) {
+               continue;
+            }
+            QuarantineIndex.Snapshot snapshot = all.get(name);
+            // null if the job is gone or the user may not see it
+            Job<?, ?> job = jenkins.getItemByFullName(name, Job.class);
+            if (snapshot == null || job == null) {
+               continue;
+            }
+            // the outcomes of the tests in the build the snapshot is of
+            Map<String, QuarantineSummary.Entry> summary = QuarantineSummary.read(job, snapshot.getBuild());
+            for (QuarantineRecord record : snapshot.getRecords().values()) {
+               export.write(name, record, summary != null ? summary.get(record.getTestObjectId()) : null);
+            }
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   private static long parseLong(String value, long defaultValue) {
+      try {
+         return value != null ? Long.parseLong(value) : defaultValue;
+      } catch (NumberFormatException e) {
+         return defaultValue;
+      }
+   }
+
+   static Map<String, List<String>> parseSelection(String[] values) {
+      Map<String, List<String>> selection = new LinkedHashMap<String, List<String>>();
+      if (values == null) {
+         return selection;
+      }
+      for (String value : values) {
+         int separator = value.indexOf(SELECTION_SEPARATOR);
+         if (separator <= 0) {
+            continue;
+         }
+         String job = value.substring(0, separator);
+         if (!selection.containsKey(job)) {
+            selection.put(job, new ArrayList<String>());
+         }
+         selection.get(job).add(value.substring(separator + 1));
+      }
+      return selection;
+   }
+
+   /**
+    * Maps job names to the quarantine data of their latest completed build.
+    * Jobs that can't be found or have no quarantinable results are skipped.
+    */
+   private Map<Data, List<String>> resolve(Map<String, List<String>> selection) {
+      Map<Data, List<String>> resolved = new LinkedHashMap<Data, List<String>>();
+      for (Map.Entry<String, List<String>> entry : selection.entrySet()) {
+         Job<?, ?> job = Hudson.getInstance().getItemByFullName(entry.getKey(), Job.class);
+         if (job == null || entry.getValue().isEmpty()) {
+            continue;
+         }
+         Run<?, ?> build = job.getLastCompletedBuild();
+         if (build == null) {
+            continue;
+         }
+         Data data = null;
+         for (String id : entry.getValue()) {
+            data = Data.forTest(build, id);
+            if (data != null) {
+               break;
+            }
+         }
+         if (data != null) {
+            resolved.put(data, entry.getValue());
+         }
+      }
+      return resolved;
+   }
+
 }
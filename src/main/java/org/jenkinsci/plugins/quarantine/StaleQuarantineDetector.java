@@ -0,0 +1,129 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds quarantines of tests that haven't run for a while, usually because
+ * they were deleted or renamed. Works from the build a test was last seen in
+ * as kept in the {@link QuarantineIndex}, so no test result is loaded.
+ *
+ * Stale quarantines are either listed in the report or, if so configured,
+ * pruned from the index, which also stops them from being carried over into
+ * later builds. Runs at low priority and checks a limited number of
+ * quarantines per second, and prunes a limited number per run.
+ */
+@Extension
+public class StaleQuarantineDetector extends AsyncPeriodicWork {
+
+   private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+   /** quarantines checked before pausing */
+   static final int BATCH_SIZE = 500;
+   private static final long BATCH_PAUSE_MILLIS = 500;
+
+   /** each prune means saving the index and appending to the audit log */
+   static final int MAX_PRUNES_PER_RUN = 100;
+
+   /** the stale quarantines found by the last run, by job full name */
+   private volatile SortedMap<String, List<QuarantineRecord>> stale =
+         Collections.unmodifiableSortedMap(new TreeMap<String, List<QuarantineRecord>>());
+
+   public StaleQuarantineDetector() {
+      super("Stale quarantine detection");
+   }
+
+   public static StaleQuarantineDetector get() {
+      return Jenkins.getInstance().getExtensionList(PeriodicWork.class).get(StaleQuarantineDetector.class);
+   }
+
+   @Override
+   public long getRecurrencePeriod() {
+      return HOUR;
+   }
+
+   /**
+    * The stale quarantines found by the last run that weren't pruned
+    */
+   public SortedMap<String, List<QuarantineRecord>> getStale() {
+      return stale;
+   }
+
+   @Override
+   protected void execute(TaskListener listener) throws InterruptedException {
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      if (config == null || (config.getStaleAfterBuilds() <= 0 && config.getStaleAfterDays() <= 0)) {
+         stale = Collections.unmodifiableSortedMap(new TreeMap<String, List<QuarantineRecord>>());
+         return;
+      }
+      Thread thread = Thread.currentThread();
+      int priority = thread.getPriority();
+      thread.setPriority(Thread.MIN_PRIORITY);
+      try {
+         stale = Collections.unmodifiableSortedMap(detect(config.getStaleAfterBuilds(), config.getStaleAfterDays(),
+               config.isPruneStale(), listener));
+      } finally {
+         thread.setPriority(priority);
+      }
+   }
+
+   SortedMap<String, List<QuarantineRecord>> detect(int afterBuilds, int afterDays, boolean prune,
+         TaskListener listener) throws InterruptedException {
+      long now = System.currentTimeMillis();
+      QuarantineIndex index = QuarantineIndex.get();
+      SortedMap<String, List<QuarantineRecord>> found = new TreeMap<String, List<QuarantineRecord>>();
+      int checked = 0;
+      int pruned = 0;
+      for (Map.Entry<String, QuarantineIndex.Snapshot> entry : index.getAll().entrySet()) {
+         QuarantineIndex.Snapshot snapshot = entry.getValue();
+         for (QuarantineRecord record : snapshot.getRecords().values()) {
+            if (++checked % BATCH_SIZE == 0) {
+               Thread.sleep(BATCH_PAUSE_MILLIS);
+            }
+            if (!isStale(snapshot.getBuild(), record, afterBuilds, afterDays, now)) {
+               continue;
+            }
+            if (prune && pruned < MAX_PRUNES_PER_RUN && index.removeRecord(entry.getKey(), record)) {
+               pruned++;
+               listener.getLogger().println("pruned stale quarantine of " + record.getTestObjectId() + " in "
+                     + entry.getKey() + ", last seen in build " + record.getLastSeen());
+               QuarantineAuditLog.record(QuarantineAuditLog.Type.STALE, entry.getKey(), null,
+                     record.getTestObjectId(), null, "last seen in build " + record.getLastSeen());
+               continue;
+            }
+            List<QuarantineRecord> records = found.get(entry.getKey());
+            if (records == null) {
+               records = new ArrayList<QuarantineRecord>();
+               found.put(entry.getKey(), records);
+            }
+            records.add(record);
+         }
+      }
+      listener.getLogger().println("checked " + checked + " quarantines, pruned " + pruned);
+      return found;
+   }
+
+   /**
+    * Whether a quarantine of a job whose latest build is <code>build</code>
+    * belongs to a test that hasn't run for the given number of builds or
+    * days. Quarantines not knowing where their test was seen are never stale.
+    */
+   static boolean isStale(int build, QuarantineRecord record, int afterBuilds, int afterDays, long now) {
+      if (record.getLastSeen() <= 0 || record.getLastSeen() >= build) {
+         return false;
+      }
+      return (afterBuilds > 0 && build - record.getLastSeen() >= afterBuilds)
+            || (afterDays > 0 && now - record.getLastSeenTime() >= afterDays * DAY);
+   }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.quarantine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: deadlines are hashed into a ring of buckets by the
+ * tick they fall into, and advancing the wheel only looks at the buckets of
+ * the ticks that passed. Deadlines further away than one rotation share a
+ * bucket with nearer ones and are skipped until their round comes up.
+ *
+ * Scheduling is O(1), and advancing costs the number of entries in the passed
+ * buckets, so no matter how many entries there are, each tick only touches a
+ * small fraction of them. Entries can't be cancelled, the caller is expected
+ * to check whether a fired entry still applies.
+ */
+final class TimerWheel<T> {
+
+   private static final class Entry<T> {
+      final T item;
+      final long deadline;
+
+      Entry(T item, long deadline) {
+         this.item = item;
+         this.deadline = deadline;
+      }
+   }
+
+   private final long tickMillis;
+   private final List<List<Entry<T>>> buckets;
+   private long currentTick;
+   private int size;
+
+   TimerWheel(long tickMillis, int bucketCount, long now) {
+      this.tickMillis = tickMillis;
+      this.buckets = new ArrayList<List<Entry<T>>>(bucketCount);
+      for (int i = 0; i < bucketCount; i++) {
+         buckets.add(new ArrayList<Entry<T>>(0));
+      }
+      this.currentTick = now / tickMillis;
+   }
+
+   synchronized void schedule(T item, long deadline) {
+      // anything already due fires on the next advance
+      long tick = Math.max(deadline / tickMillis, currentTick);
+      buckets.get((int) (tick % buckets.size())).add(new Entry<T>(item, deadline));
+      size++;
+   }
+
+   /**
+    * Moves the wheel to the given time.
+    *
+    * @return the items whose deadline has passed
+    */
+   synchronized List<T> advance(long now) {
+      List<T> due = new ArrayList<T>();
+      long target = now / tickMillis;
+      // after a full rotation every bucket has been seen once
+      long last = Math.min(target, currentTick + buckets.size() - 1);
+      for (long tick = currentTick; tick <= last; tick++) {
+         List<Entry<T>> bucket = buckets.get((int) (tick % buckets.size()));
+         for (Iterator<Entry<T>> it = bucket.iterator(); it.hasNext();) {
+            Entry<T> entry = it.next();
+            if (entry.deadline <= now) {
+               due.add(entry.item);
+               it.remove();
+               size--;
+            }
+         }
+      }
+      currentTick = target;
+      return due;
+   }
+
+   synchronized int size() {
+      return size;
+   }
+}
@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Mailer;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Display names and mail addresses of quarantiners. Looking up a user can
+ * mean a round trip to LDAP or an SSO provider, and the same few users are
+ * looked up for every row of the report and every mail, so the answers are
+ * kept for a while.
+ *
+ * The cache holds at most {@link #MAX_SIZE} users, dropping the least recently
+ * used one, and forgets entries after {@link #TTL} or as soon as the user's
+ * configuration is saved.
+ */
+@Extension
+public class UserInfoCache {
+
+   static final int MAX_SIZE = 1000;
+
+   static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+   static final class Info {
+      final String displayName;
+      /** null if the user has none */
+      final String emailAddress;
+      final long loaded;
+
+      Info(String displayName, String emailAddress, long loaded) {
+         this.displayName = displayName;
+         this.emailAddress = emailAddress;
+         this.loaded = loaded;
+      }
+   }
+
+   private final Map<String, Info> cache = new LinkedHashMap<String, Info>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Info> eldest) {
+         return size() > MAX_SIZE;
+      }
+   };
+
+   /** bumped on every invalidation, so a lookup racing with one isn't cached */
+   private long generation;
+
+   public static UserInfoCache get() {
+      return Jenkins.getInstance().getExtensionList(UserInfoCache.class).get(0);
+   }
+
+   /**
+    * @return the display name of the given user, or the id itself if there is
+    *         no such user
+    */
+   public String getDisplayName(String userId) {
+      return userId != null ? lookup(userId).displayName : null;
+   }
+
+   /**
+    * @return the mail address configured by the given user, or null
+    */
+   public String getEmailAddress(String userId) {
+      return userId != null ? lookup(userId).emailAddress : null;
+   }
+
+   private Info lookup(String userId) {
+      long now = System.currentTimeMillis();
+      long seen;
+      synchronized (cache) {
+         Info info = cache.get(userId);
+         if (info != null && now - info.loaded < TTL) {
+            return info;
+         }
+         seen = generation;
+      }
+      // resolved outside the lock, a slow lookup shouldn't hold up others.
+      // Two threads may both resolve the same user, which is harmless.
+      Info info = resolve(userId, now);
+      synchronized (cache) {
+         if (generation == seen) {
+            cache.put(userId, info);
+         }
+      }
+      return info;
+   }
+
+   private static Info resolve(String userId, long now) {
+      User user = User.get(userId, false, Collections.emptyMap());
+      if (user == null) {
+         return new Info(userId, null, now);
+      }
+      Mailer.UserProperty property = user.getProperty(Mailer.UserProperty.class);
+      return new Info(user.getDisplayName(), property != null ? property.getAddress() : null, now);
+   }
+
+   void invalidate(String userId) {
+      synchronized (cache) {
+         cache.remove(userId);
+         generation++;
+      }
+   }
+
+   void clear() {
+      synchronized (cache) {
+         cache.clear();
+         generation++;
+      }
+   }
+
+   int size() {
+      synchronized (cache) {
+         return cache.size();
+      }
+   }
+
+   /**
+    * Forgets a user as soon as its configuration changes.
+    */
+   @Extension
+   public static class Invalidator extends SaveableListener {
+      @Override
+      public void onChange(Saveable o, XmlFile file) {
+         if (o instanceof User) {
+            get().invalidate(((User) o).getId());
+         }
+      }
+   }
+}
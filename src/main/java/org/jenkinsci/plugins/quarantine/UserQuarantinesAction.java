@@ -0,0 +1,169 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.model.TransientUserActionFactory;
+import hudson.model.User;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The tests a user put in quarantine, across all jobs, on the user's page.
+ * Read from {@link QuarantineIndex#getByUser(String)}, so it only costs as
+ * much as that user has quarantines.
+ */
+@ExportedBean
+public class UserQuarantinesAction implements Action {
+
+   private final User user;
+
+   UserQuarantinesAction(User user) {
+      this.user = user;
+   }
+
+   public User getUser() {
+      return user;
+   }
+
+   public String getIconFileName() {
+      return "/plugin/quarantine/icons/quarantine-24x24.png";
+   }
+
+   public String getDisplayName() {
+      return Messages.UserQuarantinesAction_DisplayName();
+   }
+
+   public String getUrlName() {
+      return "quarantine";
+   }
+
+   public Api getApi() {
+      return new Api(this);
+   }
+
+   /**
+    * One quarantined test
+    */
+   @ExportedBean(defaultVisibility = 2)
+   public static final class Entry {
+      private final Job<?, ?> job;
+      private final QuarantineRecord record;
+      private final QuarantineSummary.Entry last;
+
+      Entry(Job<?, ?> job, QuarantineRecord record, QuarantineSummary.Entry last) {
+         this.job = job;
+         this.record = record;
+         this.last = last;
+      }
+
+      public Job<?, ?> getJob() {
+         return job;
+      }
+
+      @Exported(name = "job")
+      public String getJobName() {
+         return job.getFullName();
+      }
+
+      @Exported
+      public String getTest() {
+         return record.getTestObjectId();
+      }
+
+      /**
+       * The full name of the test, or its id if it did not run in the build
+       * the entry was read from
+       */
+      public String getTestName() {
+         return last != null ? last.getName() : getTest();
+      }
+
+      /**
+       * Relative to the test report of a build
+       */
+      public String getTestUrl() {
+         String id = record.getTestObjectId();
+         return id.startsWith("junit/") ? id.substring("junit/".length()) : id;
+      }
+
+      /**
+       * The outcome in the latest build, or in the build a stale quarantine
+       * was last seen in, unknown if it did not run there
+       */
+      @Exported
+      public String getStatus() {
+         return QuarantineSummary.getOutcome(last);
+      }
+
+      @Exported
+      public int getPassStreak() {
+         return record.getPassStreak();
+      }
+
+      @Exported
+      public Date getDate() {
+         return record.getDate();
+      }
+
+      @Exported
+      public String getReason() {
+         return record.getReason();
+      }
+
+      @Exported
+      public Date getExpiry() {
+         return record.getExpiry();
+      }
+
+      public int getLastSeen() {
+         return record.getLastSeen();
+      }
+
+      public String getQuarantinedByName() {
+         return UserInfoCache.get().getDisplayName(record.getQuarantinedBy());
+      }
+   }
+
+   /**
+    * The quarantines of the user in jobs the current user can see, by job
+    * name
+    */
+   @Exported(inline = true)
+   public List<Entry> getQuarantines() {
+      List<Entry> entries = new ArrayList<Entry>();
+      Jenkins jenkins = Jenkins.getInstance();
+      for (Map.Entry<String, List<QuarantineRecord>> e : QuarantineIndex.get().getByUser(user.getId()).entrySet()) {
+         // null if it is gone or not visible
+         Job<?, ?> job = jenkins.getItemByFullName(e.getKey(), Job.class);
+         if (job == null) {
+            continue;
+         }
+         QuarantineIndex.Snapshot snapshot = QuarantineIndex.get().get(e.getKey());
+         Map<String, QuarantineSummary.Entry> summary = snapshot != null
+               ? QuarantineSummary.read(job, snapshot.getBuild()) : null;
+         for (QuarantineRecord record : e.getValue()) {
+            entries.add(new Entry(job, record, summary != null ? summary.get(record.getTestObjectId()) : null));
+         }
+      }
+      return entries;
+   }
+
+   @Extension
+   public static class Factory extends TransientUserActionFactory {
+      @Override
+      public Collection<? extends Action> createFor(User target) {
+         return Collections.singleton(new UserQuarantinesAction(target));
+      }
+   }
+}
@@ -0,0 +1,421 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * Posts failures of quarantined tests as JSON to the webhooks configured in
+ * {@link QuarantineConfiguration}, e.g. to tell a chat room.
+ *
+ * Failures are collected per webhook for the configured batch window and
+ * posted together, at most as often as the configured rate allows. Failed
+ * posts are retried with growing delays, honouring <code>Retry-After</code>.
+ * Builds only hand over the events: waiting is done on the {@link Timer} of
+ * Jenkins and posting on a small pool of threads of our own, with at most one
+ * post per webhook under way, so a webhook that hangs doesn't hold up the
+ * others. The pool is shut down with Jenkins.
+ */
+@Extension
+public class WebhookNotifier extends QuarantineListener {
+
+   private static final Logger LOGGER = Logger.getLogger(WebhookNotifier.class.getName());
+
+   public static final String DEFAULT_TEMPLATE = "{\"text\": \"${text}\", \"count\": ${count}, \"events\": ${events}}";
+
+   /** events waiting per webhook beyond which new ones are dropped */
+   static final int MAX_PENDING = 1000;
+   /** events per post, the rest goes with the next one */
+   static final int MAX_BATCH = 100;
+   static final int MAX_ATTEMPTS = 5;
+
+   /** delay before the first retry, doubled with each further one */
+   static long RETRY_DELAY_MILLIS = Long.getLong(WebhookNotifier.class.getName() + ".retryDelay", 2000);
+   private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+   private static final int CONNECT_TIMEOUT = 10000;
+   private static final int READ_TIMEOUT = 30000;
+
+   /** webhooks posted to at the same time at most */
+   static final int MAX_THREADS = 4;
+
+   private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<String, Target>();
+
+   private ThreadPoolExecutor executor;
+   private boolean stopped;
+
+   private final AtomicLong sent = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+
+   public static WebhookNotifier get() {
+      return Jenkins.getInstance().getExtensionList(QuarantineListener.class).get(WebhookNotifier.class);
+   }
+
+   @Override
+   public void onEvent(QuarantineEvent event) {
+      if (event.getType() != QuarantineEvent.Type.QUARANTINED_TEST_FAILED) {
+         return;
+      }
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      for (String url : config.getWebhookUrlList()) {
+         Target target = targets.get(url);
+         if (target == null) {
+            Target created = new Target(url);
+            target = targets.putIfAbsent(url, created);
+            if (target == null) {
+               target = created;
+            }
+         }
+         target.add(event, TimeUnit.SECONDS.toMillis(config.getWebhookBatchSeconds()),
+               config.getWebhookMaxPerMinute());
+      }
+   }
+
+   /**
+    * Number of events posted successfully
+    */
+   public long getSent() {
+      return sent.get();
+   }
+
+   /**
+    * Number of events dropped because a webhook was too far behind
+    */
+   public long getDropped() {
+      return dropped.get();
+   }
+
+   /**
+    * Number of events given up on after all retries failed
+    */
+   public long getFailed() {
+      return failed.get();
+   }
+
+   /**
+    * @return the pool posts are made on, null once Jenkins shuts down
+    */
+   private synchronized ThreadPoolExecutor executor() {
+      if (executor == null && !stopped) {
+         executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+               new LinkedBlockingQueue<Runnable>(),
+               new NamingThreadFactory(new DaemonThreadFactory(), "Quarantine webhook"));
+         executor.allowCoreThreadTimeOut(true);
+      }
+      return executor;
+   }
+
+   @Terminator
+   public static void shutdown() {
+      WebhookNotifier notifier = get();
+      if (notifier != null) {
+         notifier.stop();
+      }
+   }
+
+   synchronized void stop() {
+      stopped = true;
+      if (executor != null) {
+         executor.shutdownNow();
+         executor = null;
+      }
+   }
+
+   /**
+    * Runs the task on the pool after the given delay
+    */
+   private void schedule(final Runnable task, long delayMillis) {
+      Timer.get().schedule(new Runnable() {
+         public void run() {
+            ThreadPoolExecutor pool = executor();
+            if (pool == null) {
+               return;
+            }
+            try {
+               pool.execute(task);
+            } catch (RejectedExecutionException e) {
+               LOGGER.log(Level.FINE, "not posting quarantine events, shutting down", e);
+            }
+         }
+      }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Renders the payload of a batch of events. The template may use
+    * <code>${text}</code> (one line per failure, escaped for a JSON string),
+    * <code>${count}</code> and <code>${events}</code> (a JSON array).
+    */
+   static String render(String template, List<QuarantineEvent> events) {
+      StringBuilder text = new StringBuilder();
+      JSONArray array = new JSONArray();
+      for (QuarantineEvent event : events) {
+         String test = event.getTestName() != null ? event.getTestName() : event.getTestObjectId();
+         if (text.length() > 0) {
+            text.append('\n');
+         }
+         text.append(Messages.WebhookNotifier_Line(test, event.getJob(), String.valueOf(event.getBuild()),
+               event.getUser()));
+
+         JSONObject json = new JSONObject();
+         json.put("type", event.getType().name());
+         json.put("time", event.getTime().getTime());
+         json.put("job", event.getJob());
+         json.put("build", event.getBuild());
+         json.put("test", test);
+         json.put("testObjectId", event.getTestObjectId());
+         json.put("user", event.getUser());
+         json.put("reason", event.getReason());
+         array.add(json);
+      }
+      String quoted = JSONUtils.quote(text.toString());
+      return template
+            .replace("${text}", quoted.substring(1, quoted.length() - 1))
+            .replace("${count}", String.valueOf(events.size()))
+            .replace("${events}", array.toString());
+   }
+
+   /**
+    * Posts the payload. The response is read to the end so the connection
+    * goes back to the keep-alive pool of {@link HttpURLConnection} and is
+    * reused for the next post to the same host.
+    *
+    * @return the status and the Retry-After header of the response
+    */
+   static Response post(String url, String payload) throws IOException {
+      // through the proxy configured in Jenkins
+      HttpURLConnection connection = (HttpURLConnection) ProxyConfiguration.open(new URL(url));
+      connection.setConnectTimeout(CONNECT_TIMEOUT);
+      connection.setReadTimeout(READ_TIMEOUT);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+      byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+      connection.setFixedLengthStreamingMode(body.length);
+      OutputStream out = connection.getOutputStream();
+      try {
+         out.write(body);
+      } finally {
+         out.close();
+      }
+      int status = connection.getResponseCode();
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+         try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+               // drain
+            }
+         } finally {
+            in.close();
+         }
+      }
+      return new Response(status, connection.getHeaderField("Retry-After"));
+   }
+
+   static final class Response {
+      final int status;
+      final String retryAfter;
+
+      Response(int status, String retryAfter) {
+         this.status = status;
+         this.retryAfter = retryAfter;
+      }
+
+      boolean isSuccess() {
+         return status >= 200 && status < 300;
+      }
+
+      /**
+       * Whether posting again later may work: rate limited or a server error
+       */
+      boolean isRetryable() {
+         return status == 429 || status >= 500;
+      }
+
+      /**
+       * @return the delay asked for by the server, -1 if none
+       */
+      long getRetryAfterMillis() {
+         if (retryAfter == null) {
+            return -1;
+         }
+         try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+         } catch (NumberFormatException e) {
+            // an HTTP date, rare enough to go with our own backoff
+            return -1;
+         }
+      }
+   }
+
+   static long backoff(int attempt) {
+      return Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << Math.min(attempt, 20));
+   }
+
+   /**
+    * The pending events of a webhook. At most one post (with its retries) is
+    * under way at a time, events coming in meanwhile wait for the next one.
+    */
+   private final class Target {
+      private final String url;
+      private final List<QuarantineEvent> pending = new ArrayList<QuarantineEvent>();
+      private boolean scheduled;
+      private boolean sending;
+
+      /** token bucket of the rate limit */
+      private double tokens = -1;
+      private long refilled;
+      private int perMinute;
+
+      private long window;
+
+      Target(String url) {
+         this.url = url;
+      }
+
+      synchronized void add(QuarantineEvent event, long window, int perMinute) {
+         this.window = window;
+         this.perMinute = perMinute;
+         if (pending.size() >= MAX_PENDING) {
+            long count = dropped.incrementAndGet();
+            if (count == 1 || count % 1000 == 0) {
+               LOGGER.warning("webhook " + url + " is behind, dropped " + count + " events so far");
+            }
+            return;
+         }
+         pending.add(event);
+         if (!scheduled && !sending) {
+            scheduled = true;
+            schedule(new Runnable() {
+               public void run() {
+                  flush();
+               }
+            }, window);
+         }
+      }
+
+      /**
+       * @return 0 if a post may be made now, otherwise how long to wait
+       */
+      private long acquire(long now) {
+         if (perMinute <= 0) {
+            return 0;
+         }
+         if (tokens < 0) {
+            tokens = perMinute;
+         } else {
+            tokens = Math.min(perMinute, tokens + (now - refilled) * perMinute / 60000.0);
+         }
+         refilled = now;
+         if (tokens >= 1) {
+            tokens--;
+            return 0;
+         }
+         return (long) Math.ceil((1 - tokens) * 60000.0 / perMinute);
+      }
+
+      void flush() {
+         final List<QuarantineEvent> batch;
+         synchronized (this) {
+            scheduled = false;
+            if (pending.isEmpty()) {
+               return;
+            }
+            long wait = acquire(System.currentTimeMillis());
+            if (wait > 0) {
+               scheduled = true;
+               schedule(new Runnable() {
+                  public void run() {
+                     flush();
+                  }
+               }, wait);
+               return;
+            }
+            List<QuarantineEvent> head = pending.subList(0, Math.min(MAX_BATCH, pending.size()));
+            batch = new ArrayList<QuarantineEvent>(head);
+            head.clear();
+            sending = true;
+         }
+         send(batch, 0);
+      }
+
+      void send(final List<QuarantineEvent> batch, final int attempt) {
+         long retryIn;
+         try {
+            Response response = post(url, render(QuarantineConfiguration.get().getWebhookTemplateOrDefault(), batch));
+            if (response.isSuccess()) {
+               sent.addAndGet(batch.size());
+               done();
+               return;
+            }
+            if (!response.isRetryable()) {
+               giveUp(batch, "HTTP " + response.status, null);
+               return;
+            }
+            long asked = response.getRetryAfterMillis();
+            retryIn = asked >= 0 ? Math.min(asked, MAX_RETRY_DELAY_MILLIS) : backoff(attempt);
+         } catch (IOException e) {
+            LOGGER.log(Level.FINE, "failed posting to " + url, e);
+            retryIn = backoff(attempt);
+         } catch (RuntimeException e) {
+            giveUp(batch, e.toString(), e);
+            return;
+         }
+         if (attempt + 1 >= MAX_ATTEMPTS) {
+            giveUp(batch, "still failing after " + MAX_ATTEMPTS + " attempts", null);
+            return;
+         }
+         schedule(new Runnable() {
+            public void run() {
+               send(batch, attempt + 1);
+            }
+         }, retryIn);
+      }
+
+      private void giveUp(List<QuarantineEvent> batch, String why, Throwable cause) {
+         failed.addAndGet(batch.size());
+         LOGGER.log(Level.WARNING, "gave up posting " + batch.size() + " quarantine events to " + url + ": " + why,
+               cause);
+         done();
+      }
+
+      private synchronized void done() {
+         sending = false;
+         if (!pending.isEmpty() && !scheduled) {
+            scheduled = true;
+            schedule(new Runnable() {
+               public void run() {
+                  flush();
+               }
+            }, window);
+         }
+      }
+   }
+}
@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class EventRingTest {
+
+   @Test
+   public void testCapacityIsRoundedUpToPowerOfTwo() {
+      assertEquals(2, new EventRing<String>(1).capacity());
+      assertEquals(8, new EventRing<String>(5).capacity());
+      assertEquals(8, new EventRing<String>(8).capacity());
+      assertEquals(4096, new EventRing<String>(4000).capacity());
+   }
+
+   @Test
+   public void testFullRingTurnsAwayNewItems() {
+      EventRing<String> ring = new EventRing<String>(4);
+      for (int i = 0; i < 4; i++) {
+         assertTrue(ring.offer("item" + i));
+      }
+      assertFalse(ring.offer("one too many"));
+      assertEquals(4, ring.size());
+
+      assertEquals("item0", ring.poll());
+      assertTrue(ring.offer("item4"));
+      for (int i = 1; i <= 4; i++) {
+         assertEquals("item" + i, ring.poll());
+      }
+      assertNull(ring.poll());
+      assertEquals(0, ring.size());
+   }
+
+   @Test
+   public void testItemsOfManyProducersAllArriveInTheirOrder() throws Exception {
+      final int producers = 4;
+      final int perProducer = 20000;
+      final EventRing<int[]> ring = new EventRing<int[]>(64);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int p = 0; p < producers; p++) {
+         final int producer = p;
+         Thread thread = new Thread() {
+            @Override
+            public void run() {
+               try {
+                  start.await();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               for (int i = 0; i < perProducer; i++) {
+                  while (!ring.offer(new int[]{producer, i})) {
+                     Thread.yield();
+                  }
+               }
+            }
+         };
+         thread.start();
+         threads.add(thread);
+      }
+      start.countDown();
+
+      int[] next = new int[producers];
+      int received = 0;
+      long deadline = System.currentTimeMillis() + 30000;
+      while (received < producers * perProducer) {
+         int[] item = ring.poll();
+         if (item == null) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.yield();
+            continue;
+         }
+         assertEquals(next[item[0]], item[1]);
+         next[item[0]]++;
+         received++;
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      assertNull(ring.poll());
+   }
+}
@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FailureSignatureTest {
+
+   private static final String TRACE = "java.lang.AssertionError: expected:<3> but was:<4>\n"
+         + "\tat org.junit.Assert.fail(Assert.java:88)\n"
+         + "\tat com.example.FooTest.testBar(FooTest.java:42)\n";
+
+   @Test
+   public void testLineNumbersAndIdsAreIgnored() {
+      String other = "java.lang.AssertionError: expected:<7> but was:<12>\n"
+            + "\tat org.junit.Assert.fail(Assert.java:90)\n"
+            + "\tat com.example.FooTest.testBar(FooTest.java:57)\n";
+      assertEquals(FailureSignature.of(TRACE, null), FailureSignature.of(other, null));
+
+      assertEquals(FailureSignature.of("Connection to localhost:8080 refused, session 1a2b3c", null),
+            FailureSignature.of("Connection to localhost:34117 refused, session ff09e1", null));
+   }
+
+   @Test
+   public void testWhitespaceIsFolded() {
+      assertEquals(FailureSignature.of(TRACE, null), FailureSignature.of(TRACE.replace("\n\tat", "\r\n    at"), null));
+   }
+
+   @Test
+   public void testDifferentFailuresDiffer() {
+      String npe = "java.lang.NullPointerException\n"
+            + "\tat com.example.FooTest.testBar(FooTest.java:42)\n";
+      assertFalse(FailureSignature.of(TRACE, null) == FailureSignature.of(npe, null));
+      assertFalse(FailureSignature.of(TRACE, null)
+            == FailureSignature.of(TRACE.replace("testBar", "testBaz"), null));
+   }
+
+   @Test
+   public void testFallsBackToErrorDetails() {
+      assertEquals(FailureSignature.of(null, "went wrong"), FailureSignature.of("", "went wrong"));
+      assertFalse(FailureSignature.of(null, "went wrong") == FailureSignature.of(null, "went right"));
+      assertFalse(FailureSignature.of(null, null) == FailureSignature.NONE);
+      assertNull(FailureSignature.toString(FailureSignature.NONE));
+      assertEquals(16, FailureSignature.toString(FailureSignature.of(TRACE, null)).length());
+   }
+}
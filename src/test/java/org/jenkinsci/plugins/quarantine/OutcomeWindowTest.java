@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutcomeWindowTest {
+
+   private static OutcomeWindow record(int size, boolean... failed) {
+      OutcomeWindow window = new OutcomeWindow();
+      for (int i = 0; i < failed.length; i++) {
+         window.record(failed[i], size, i + 1);
+      }
+      return window;
+   }
+
+   @Test
+   public void testNoScoreWithoutEnoughSamples() {
+      assertEquals(-1, record(30, true, false, true, false).getScore(), 0);
+   }
+
+   @Test
+   public void testStableTestsAreNotFlaky() {
+      assertEquals(0, record(30, false, false, false, false, false, false).getScore(), 0);
+      assertEquals(0, record(30, true, true, true, true, true).getScore(), 0);
+   }
+
+   @Test
+   public void testAlternatingTestIsFullyFlaky() {
+      OutcomeWindow window = record(30, true, false, true, false, true, false);
+      assertEquals(5, window.getFlips());
+      assertEquals(3, window.getFailures());
+      assertEquals(1, window.getScore(), 0);
+   }
+
+   @Test
+   public void testOldOutcomesLeaveTheWindow() {
+      // flips early on, then stable for longer than the window
+      OutcomeWindow window = record(5, true, false, true, false, false, false, false, false);
+      assertEquals(5, window.count);
+      assertEquals(0, window.getFlips());
+      assertEquals(0, window.getScore(), 0);
+   }
+
+   @Test
+   public void testFullWindow() {
+      boolean[] outcomes = new boolean[100];
+      for (int i = 0; i < outcomes.length; i++) {
+         outcomes[i] = i % 4 == 0;
+      }
+      OutcomeWindow window = record(64, outcomes);
+      assertEquals(64, window.count);
+      assertEquals(16, window.getFailures());
+      // the oldest failure in the window only flips once within it
+      assertEquals(31, window.getFlips());
+   }
+
+   @Test
+   public void testResetForgetsFlips() {
+      OutcomeWindow window = record(10, true, false, true, false, true);
+      assertEquals(1.0, window.getScore(), 0);
+      window.reset();
+      assertEquals(-1, window.getScore(), 0);
+      window.record(false, 10, 6);
+      window.record(true, 10, 7);
+      assertEquals(2, window.count);
+      assertEquals(1, window.getFlips());
+   }
+}
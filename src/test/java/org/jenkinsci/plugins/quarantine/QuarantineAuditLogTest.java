@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.jenkinsci.plugins.quarantine.QuarantineAuditLog.Event;
+import org.jenkinsci.plugins.quarantine.QuarantineAuditLog.Type;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QuarantineAuditLogTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static final long DAY = 24L * 60 * 60 * 1000;
+
+   private QuarantineAuditLog open(File dir) {
+      return new QuarantineAuditLog(dir, 1024, 100, 1000 * DAY);
+   }
+
+   private static Event event(long time, Type type, String job, String test) {
+      return new Event(time, type, job, null, test, "user1", "reason " + time);
+   }
+
+   @Test
+   public void testQueriesByTestAndTimeRange() throws Exception {
+      QuarantineAuditLog log = open(folder.newFolder());
+      for (int i = 0; i < 500; i++) {
+         log.append(event(1000 + i, Type.QUARANTINE, i % 2 == 0 ? "folder/a" : "b", "test" + (i % 10)));
+      }
+      assertTrue(log.getSegmentCount() > 1);
+
+      List<Event> events = log.forTest("test3", null, 1000);
+      assertEquals(50, events.size());
+      assertEquals(1003, events.get(0).getTime());
+      assertEquals("test3", events.get(49).getTest());
+
+      events = log.query(1100, 1199, null, 1000);
+      assertEquals(100, events.size());
+      assertEquals(1100, events.get(0).getTime());
+      assertEquals(1199, events.get(99).getTime());
+
+      events = log.query(1100, 1199, "folder", 1000);
+      assertEquals(50, events.size());
+      assertEquals("folder/a", events.get(0).getJob());
+
+      assertEquals(10, log.query(0, Long.MAX_VALUE, null, 10).size());
+   }
+
+   @Test
+   public void testIndexesAreRebuiltOnLoad() throws Exception {
+      File dir = folder.newFolder();
+      QuarantineAuditLog log = open(dir);
+      for (int i = 0; i < 100; i++) {
+         log.append(event(1000 + i, Type.QUARANTINE, "job", "test" + (i % 4)));
+      }
+
+      log = open(dir);
+      assertEquals(25, log.forTest("test1", "job", 1000).size());
+      assertEquals(11, log.query(1050, 1060, null, 1000).size());
+   }
+
+   @Test
+   public void testIncompleteLastEventIsDropped() throws Exception {
+      File dir = folder.newFolder();
+      QuarantineAuditLog log = open(dir);
+      log.append(event(1000, Type.QUARANTINE, "job", "test"));
+      File[] segments = dir.listFiles();
+      assertEquals(1, segments.length);
+      append(segments[0], "{\"time\":1001,\"ty");
+
+      log = open(dir);
+      log.append(event(1002, Type.RELEASE, "job", "test"));
+      List<Event> events = log.forTest("test", null, 10);
+      assertEquals(2, events.size());
+      assertEquals(Type.RELEASE, events.get(1).getType());
+   }
+
+   @Test
+   public void testOldSegmentsAreDeleted() throws Exception {
+      File dir = folder.newFolder();
+      QuarantineAuditLog log = new QuarantineAuditLog(dir, 1, 3, 1000 * DAY);
+      for (int i = 0; i < 10; i++) {
+         log.append(event(1000 + i, Type.QUARANTINE, "job", "test"));
+      }
+      assertEquals(3, log.getSegmentCount());
+      assertEquals(3, dir.listFiles().length);
+      List<Event> events = log.forTest("test", null, 100);
+      assertEquals(3, events.size());
+      assertEquals(1007, events.get(0).getTime());
+   }
+
+   @Test
+   public void testEventsStayInTimeOrder() throws Exception {
+      QuarantineAuditLog log = open(folder.newFolder());
+      log.append(event(2000, Type.QUARANTINE, "job", "test"));
+      log.append(event(1000, Type.RELEASE, "job", "test"));
+
+      List<Event> events = log.query(2000, 2000, null, 10);
+      assertEquals(2, events.size());
+      assertEquals(Type.RELEASE, events.get(1).getType());
+   }
+
+   private static void append(File file, String text) throws IOException {
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+         out.write(text.getBytes("UTF-8"));
+      } finally {
+         out.close();
+      }
+   }
+}
@@ -23,8 +23,17 @@
  */
 package org.jenkinsci.plugins.quarantine;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.matrix.TextAxis;
 import hudson.model.FreeStyleBuild;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
 import hudson.model.User;
@@ -38,18 +47,36 @@ import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.tasks.junit.TestResultAction;
 import hudson.util.DescribableList;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
 import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jvnet.mock_javamail.*;
 
@@ -73,17 +100,21 @@ public class QuarantineCoreTest {
    public void setUp() throws Exception {
       java.util.logging.Logger.getLogger("com.gargoylesoftware.htmlunit").setLevel(java.util.logging.Level.SEVERE);
       project = j.createFreeStyleProject(projectName);
+      addQuarantinableArchiver(project);
+
+      j.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+      j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+      User u = User.get("user1");
+      u.addProperty(new Mailer.UserProperty(user1Mail));
+   }
+
+   protected void addQuarantinableArchiver(FreeStyleProject project) throws Exception {
       DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers = new DescribableList<>(
               project);
       publishers.add(new QuarantineTestDataPublisher());
       QuarantinableJUnitResultArchiver archiver = new QuarantinableJUnitResultArchiver("*.xml");
       archiver.setTestDataPublishers(publishers);
       project.getPublishersList().add(archiver);
-
-      j.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
-      j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
-      User u = User.get("user1");
-      u.addProperty(new Mailer.UserProperty(user1Mail));
    }
 
    protected FreeStyleBuild addBuildFailure() throws Exception {
@@ -100,6 +131,11 @@ public class QuarantineCoreTest {
    }
 
    protected FreeStyleBuild runBuildWithJUnitResult(final String xmlFileName) throws Exception {
+      return runBuildWithJUnitResult(project, xmlFileName);
+   }
+
+   protected FreeStyleBuild runBuildWithJUnitResult(FreeStyleProject project, final String xmlFileName)
+           throws Exception {
       FreeStyleBuild build;
       project.getBuildersList().add(new TestBuilder() {
          public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
@@ -299,6 +335,376 @@ public class QuarantineCoreTest {
       assertTrue(build.getResult() == Result.SUCCESS);
    }
 
+   @Test
+   public void testStaleQuarantineIsFlaggedAndPruned() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      String id = tr.getSuite("SuiteA").getCase("TestB").getId();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      runBuildWithJUnitResult("junit-1-failure-missing.xml");
+      QuarantineRecord record = QuarantineIndex.get().get(projectName).getRecords().get(id);
+      assertNotNull(record);
+      assertEquals(build.getNumber(), record.getLastSeen());
+
+      StaleQuarantineDetector detector = StaleQuarantineDetector.get();
+      assertTrue(detector.detect(2, 0, true, TaskListener.NULL).isEmpty());
+
+      runBuildWithJUnitResult("junit-1-failure-missing.xml");
+      assertEquals(1, detector.detect(2, 0, false, TaskListener.NULL).get(projectName).size());
+      assertTrue(QuarantineIndex.get().get(projectName).getRecords().containsKey(id));
+
+      assertTrue(detector.detect(2, 0, true, TaskListener.NULL).isEmpty());
+      assertFalse(QuarantineIndex.get().get(projectName).getRecords().containsKey(id));
+
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+   }
+
+   @Test
+   public void testQuarantinesAreStoredCompactly() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      build.save();
+
+      String xml = FileUtils.readFileToString(new File(build.getRootDir(), "build.xml"), "UTF-8");
+      assertTrue(xml.contains("<state>"));
+      assertFalse(xml.contains("QuarantineTestAction"));
+
+      QuarantineTestAction action = getActionAfterReload(build.getNumber(), "SuiteA", "TestB");
+      assertTrue(action.isQuarantined());
+      assertEquals("user1", action.getQuarantinedBy());
+      assertEquals("reason", action.getReason());
+      assertEquals(1, action.getVersion());
+   }
+
+   @Test
+   public void testLegacyQuarantinesAreMigrated() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      String id = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB").getId();
+      // as written by older versions, keyed by an id without the junit prefix
+      String legacyId = id.substring("junit".length());
+      String legacy = "<quarantines><entry><string>" + legacyId + "</string>"
+            + "<org.jenkinsci.plugins.quarantine.QuarantineTestAction>"
+            + "<quarantined>true</quarantined><quarantinedBy>user1</quarantinedBy>"
+            + "<quarantineDate>2015-01-01 00:00:00.0 UTC</quarantineDate><reason>legacy</reason>"
+            + "<testObjectId>" + legacyId + "</testObjectId><owner reference=\"../../..\"/>"
+            + "</org.jenkinsci.plugins.quarantine.QuarantineTestAction></entry></quarantines>";
+      File file = new File(build.getRootDir(), "build.xml");
+      String xml = FileUtils.readFileToString(file, "UTF-8");
+      xml = xml.replaceFirst("<format>\\d+</format>\\s*<state>[^<]*</state>", legacy);
+      assertTrue(xml.contains(legacyId));
+      FileUtils.writeStringToFile(file, xml, "UTF-8");
+
+      QuarantineTestAction action = getActionAfterReload(build.getNumber(), "SuiteA", "TestB");
+      assertTrue(action.isQuarantined());
+      assertEquals("legacy", action.getReason());
+      assertEquals(id, action.getTestObjectId());
+   }
+
+   @Test
+   public void testUndecodableQuarantinesAreWrittenBackUnchanged() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      File file = new File(build.getRootDir(), "build.xml");
+      String xml = FileUtils.readFileToString(file, "UTF-8");
+      // as written by a newer version of the plugin
+      xml = xml.replaceFirst("<format>\\d+</format>\\s*<state>[^<]*</state>",
+            "<format>99</format><state>from the future</state>");
+      FileUtils.writeStringToFile(file, xml, "UTF-8");
+
+      QuarantineTestAction action = getActionAfterReload(build.getNumber(), "SuiteA", "TestB");
+      assertFalse(action.isQuarantined());
+      j.jenkins.getItemByFullName(projectName, FreeStyleProject.class).getBuildByNumber(build.getNumber()).save();
+
+      xml = FileUtils.readFileToString(file, "UTF-8");
+      assertTrue(xml.contains("<format>99</format>"));
+      assertTrue(xml.contains("<state>from the future</state>"));
+   }
+
+   private QuarantineTestAction getActionAfterReload(int number, String suite, String test) throws Exception {
+      j.jenkins.reload();
+      FreeStyleProject p = j.jenkins.getItemByFullName(projectName, FreeStyleProject.class);
+      return p.getBuildByNumber(number).getAction(TestResultAction.class).getResult().getSuite(suite)
+            .getCase(test).getTestAction(QuarantineTestAction.class);
+   }
+
+   @Test
+   public void testBulkQuarantineAndRelease() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-2-failures.xml");
+      CaseResult testB = tr.getSuite("SuiteA").getCase("TestB");
+      CaseResult testA = tr.getSuite("SuiteB").getCase("TestA");
+      QuarantineTestDataPublisher.Data data = testB.getTestAction(QuarantineTestAction.class).owner;
+
+      assertEquals(2, data.quarantineAll(Arrays.asList(testB.getId(), testA.getId()), "user1", "reason"));
+      assertTrue(testB.getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertTrue(testA.getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertEquals(0, data.quarantineAll(Arrays.asList(testB.getId()), "user1", "reason"));
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-2-failures.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+
+      tr = build.getAction(TestResultAction.class).getResult();
+      testB = tr.getSuite("SuiteA").getCase("TestB");
+      data = testB.getTestAction(QuarantineTestAction.class).owner;
+      assertEquals(1, data.releaseAll(Arrays.asList(testB.getId()), "user1"));
+      assertFalse(testB.getTestAction(QuarantineTestAction.class).isQuarantined());
+
+      // a controller wide quarantine is lifted as well, or the next build
+      // would put the test right back
+      testA = tr.getSuite("SuiteB").getCase("TestA");
+      assertTrue(testA.getTestAction(QuarantineTestAction.class).compareAndQuarantine(-1,
+              new QuarantineRecord(testA.getId(), "user1", "reason", System.currentTimeMillis()),
+              GlobalQuarantine.GLOBAL_SCOPE));
+      assertEquals(1, data.releaseAll(Arrays.asList(testA.getId()), "user1"));
+      assertFalse(testA.getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertNull(GlobalQuarantine.get().get(GlobalQuarantine.GLOBAL_SCOPE, testA.getId()));
+
+      build = runBuildWithJUnitResult("junit-2-failures.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+      QuarantineTestAction action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteB")
+              .getCase("TestA").getTestAction(QuarantineTestAction.class);
+      assertTrue(action == null || !action.isQuarantined());
+
+      List<QuarantineAuditLog.Event> events = QuarantineAuditLog.get().forTest(testB.getId(), project.getFullName(), 10);
+      assertEquals(2, events.size());
+      assertEquals(QuarantineAuditLog.Type.QUARANTINE, events.get(0).getType());
+      assertEquals(QuarantineAuditLog.Type.RELEASE, events.get(1).getType());
+      assertEquals("user1", events.get(1).getUser());
+   }
+
+   @Test
+   public void testStaleVersionIsRejected() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      int seen = action.getVersion();
+      QuarantineRecord record = new QuarantineRecord(action.getTestObjectId(), "user1", "reason",
+              System.currentTimeMillis());
+
+      assertTrue(action.compareAndQuarantine(seen, record, null));
+      assertEquals(seen + 1, action.getVersion());
+      // a second user acting on the same page
+      assertFalse(action.compareAndRelease(seen, "user2"));
+      assertTrue(action.isQuarantined());
+      assertTrue(action.compareAndRelease(seen + 1, "user2"));
+      assertFalse(action.isQuarantined());
+   }
+
+   @Test
+   public void testChangeOfPreviousBuildIsPassedOnToNextBuild() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction previous = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      // as if the quarantine was clicked on the first build while the second
+      // was recording
+      assertTrue(previous.compareAndQuarantine(-1, new QuarantineRecord(previous.getTestObjectId(), "user1",
+              "reason", System.currentTimeMillis()), null));
+
+      QuarantineTestAction next = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA")
+              .getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(next.isQuarantined());
+      assertEquals(previous.getVersion(), next.getVersion());
+
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+   }
+
+   @Test
+   public void testRuleQuarantinesMatchingTests() throws Exception {
+      QuarantineTestDataPublisher publisher = project.getPublishersList().get(QuarantinableJUnitResultArchiver.class)
+              .getTestDataPublishers().get(QuarantineTestDataPublisher.class);
+      publisher.setRules("Suite?.TestA");
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-2-failures.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      QuarantineTestAction action = tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isQuarantined());
+      assertEquals("Suite?.TestA", action.getRule());
+      assertFalse(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertEquals(1, action.getRuns());
+
+      // still the same quarantine, the cost adds up
+      build = runBuildWithJUnitResult("junit-2-failures.xml");
+      tr = build.getAction(TestResultAction.class).getResult();
+      QuarantineTestAction next = tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class);
+      assertEquals(action.getDate(), next.getDate());
+      assertEquals(2, next.getRuns());
+
+      publisher.setRules("SuiteA.*\nSuiteB.TestA");
+      build = runBuildWithJUnitResult("junit-2-failures.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+
+      publisher.setRules(null);
+      build = runBuildWithJUnitResult("junit-2-failures.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+   }
+
+   @Test
+   public void testFlakyTestIsQuarantinedAutomatically() throws Exception {
+      QuarantineTestDataPublisher publisher = project.getPublishersList().get(QuarantinableJUnitResultArchiver.class)
+              .getTestDataPublishers().get(QuarantineTestDataPublisher.class);
+      publisher.setFlakinessThreshold(0.5);
+      publisher.setAutoQuarantineFlaky(true);
+
+      for (int i = 0; i < 4; i++) {
+         FreeStyleBuild build = runBuildWithJUnitResult(i % 2 == 0 ? "junit-1-failure.xml" : "junit-no-failure.xml");
+         assertEquals(i % 2 != 0, build.getResult() == Result.SUCCESS);
+      }
+
+      // fifth result, the fourth flip
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+      QuarantineTestAction action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA")
+              .getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isQuarantined());
+      assertEquals(QuarantineTestAction.FLAKINESS, action.getQuarantinedBy());
+      assertEquals(1.0, action.getFlakinessScore(), 0);
+   }
+
+   @Test
+   public void testReleasedFlakyTestIsNotQuarantinedAgainRightAway() throws Exception {
+      QuarantineTestDataPublisher publisher = project.getPublishersList().get(QuarantinableJUnitResultArchiver.class)
+              .getTestDataPublishers().get(QuarantineTestDataPublisher.class);
+      publisher.setFlakinessThreshold(0.5);
+      publisher.setAutoQuarantineFlaky(true);
+
+      FreeStyleBuild build = null;
+      for (int i = 0; i < 5; i++) {
+         build = runBuildWithJUnitResult(i % 2 == 0 ? "junit-1-failure.xml" : "junit-no-failure.xml");
+      }
+      QuarantineTestAction action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA")
+              .getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isQuarantined());
+      action.release("user1");
+
+      build = runBuildWithJUnitResult("junit-no-failure.xml");
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+      action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB")
+              .getTestAction(QuarantineTestAction.class);
+      assertTrue(action == null || !action.isQuarantined());
+   }
+
+   @Test
+   public void testGlobalQuarantineAppliesWithoutLocalHistory() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+      String id = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB").getId();
+
+      GlobalQuarantine.get().put(GlobalQuarantine.GLOBAL_SCOPE,
+              new QuarantineRecord(id, "user1", "reason", System.currentTimeMillis()));
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+      QuarantineTestAction action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA")
+              .getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isGlobalScope());
+      assertEquals("reason", action.getReason());
+      assertEquals(1, action.getRuns());
+
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB")
+              .getTestAction(QuarantineTestAction.class);
+      assertEquals(2, action.getRuns());
+
+      // a new quarantine doesn't take on the cost of the one before
+      GlobalQuarantine.get().put(GlobalQuarantine.GLOBAL_SCOPE,
+              new QuarantineRecord(id, "user2", "other reason", System.currentTimeMillis() + 1000));
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB")
+              .getTestAction(QuarantineTestAction.class);
+      assertEquals("other reason", action.getReason());
+      assertEquals(1, action.getRuns());
+
+      GlobalQuarantine.get().remove(GlobalQuarantine.GLOBAL_SCOPE, id);
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+   }
+
+   @Test
+   public void testNewBranchStartsWithQuarantinesOfDefaultBranch() throws Exception {
+      MockFolder folder = j.createFolder("multibranch");
+      FreeStyleProject master = folder.createProject(FreeStyleProject.class, "master");
+      addQuarantinableArchiver(master);
+      FreeStyleProject branch = folder.createProject(FreeStyleProject.class, "PR-1");
+      addQuarantinableArchiver(branch);
+
+      FreeStyleBuild build = runBuildWithJUnitResult(master, "junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      build = runBuildWithJUnitResult(branch, "junit-1-failure.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+      QuarantineTestAction action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA")
+              .getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isQuarantined());
+      assertFalse(action.isInherited());
+   }
+
+   @Test
+   public void testAutoReleaseAfterConsecutivePasses() throws Exception {
+      project.getPublishersList().get(QuarantinableJUnitResultArchiver.class).getTestDataPublishers()
+              .get(QuarantineTestDataPublisher.class).setAutoReleasePasses(2);
+
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      tr = getResultsFromJUnitResult("junit-no-failure.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isQuarantined());
+      assertEquals(1, action.getPassStreak());
+
+      tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isQuarantined());
+      assertEquals(0, action.getPassStreak());
+
+      getResultsFromJUnitResult("junit-no-failure.xml");
+      tr = getResultsFromJUnitResult("junit-no-failure.xml");
+      action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertFalse(action.isQuarantined());
+      assertEquals(QuarantineTestAction.AUTO_RELEASE, action.getReleasedBy());
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+   }
+
+   @Test
+   public void testExpiredQuarantineFailsTheBuildAgain() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      long now = System.currentTimeMillis();
+      action.quarantine(new QuarantineRecord(action.getTestObjectId(), "user1", "reason", now, now + 60000), null);
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() == Result.SUCCESS);
+
+      tr = build.getAction(TestResultAction.class).getResult();
+      action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      action.quarantine(new QuarantineRecord(action.getTestObjectId(), "user1", "reason", now, now - 1), null);
+
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(build.getResult() != Result.SUCCESS);
+      action = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB")
+              .getTestAction(QuarantineTestAction.class);
+      assertEquals(QuarantineTestAction.EXPIRY, action.getReleasedBy());
+   }
+
+   @Test
+   public void testExpiryReleasesLatestBuildWithoutNewBuild() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      long now = System.currentTimeMillis();
+      action.quarantine(new QuarantineRecord(action.getTestObjectId(), "user1", "reason", now, now + 1), null);
+      Thread.sleep(10);
+
+      QuarantineExpiry.get().doRun();
+      assertFalse(action.isQuarantined());
+      assertTrue(QuarantineIndex.get().get(project.getFullName()).getRecords().isEmpty());
+   }
+
    @Test
    public void testQuarantinedTestsAreInReport() throws Exception {
       TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
@@ -334,6 +740,323 @@ public class QuarantineCoreTest {
       assertEquals(1, report.getNumberOfSuccessivePasses(report.getQuarantinedTests().get(0)));
    }
 
+   @Test
+   public void testReportRowsComeFromSummary() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-no-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      assertTrue(QuarantineSummary.getFile(build).exists());
+
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+      List<QuarantinedTestsReport.Row> rows = report.getQuarantinedRows();
+      assertEquals(1, rows.size());
+      assertEquals("SuiteA.TestB", rows.get(0).getEntry().getName());
+      assertEquals("user1", rows.get(0).getEntry().getQuarantinedBy());
+      assertEquals("reason", rows.get(0).getEntry().getReason());
+      assertEquals(1, rows.get(0).getEntry().getPasses());
+
+      runBuildWithJUnitResult("junit-no-failure.xml");
+      rows = report.getQuarantinedRows();
+      assertEquals(2, rows.get(0).getEntry().getPasses());
+
+      build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(QuarantineSummary.getFile(build).exists());
+      rows = report.getQuarantinedRows();
+      assertEquals(0, rows.get(0).getEntry().getPasses());
+      assertFalse(rows.get(0).getEntry().isPassed());
+      assertEquals("This went wrong", rows.get(0).getEntry().getErrorDetails());
+   }
+
+   @Test
+   public void testCostOfQuarantineIsAccumulated() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-timed.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      getResultsFromJUnitResult("junit-timed.xml");
+      tr = getResultsFromJUnitResult("junit-timed.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertEquals(2, action.getRuns());
+      assertEquals(2, action.getFailures());
+      assertEquals(5.0, action.getTotalDuration(), 0.001);
+      assertEquals(2.5, action.getRollingDuration(), 0.001);
+
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+      List<QuarantinedTestsReport.Row> rows = report.getQuarantinedRows();
+      QuarantinedTestsReport.Costs total = report.getTotalCosts(rows);
+      assertEquals(2, total.getTests());
+      assertEquals(4, total.getRuns());
+      assertEquals(2, total.getFailures());
+      assertEquals(5.5, total.getTotalDuration(), 0.001);
+      List<QuarantinedTestsReport.Costs> byJob = report.getCostsByJob(rows);
+      assertEquals(1, byJob.size());
+      assertEquals(5.5, byJob.get(0).getTotalDuration(), 0.001);
+      assertEquals(1, report.getCostsByUser(rows).size());
+
+      action.release();
+      action.quarantine("user1", "again");
+      assertEquals(0, action.getRuns());
+      assertEquals(0.0, action.getTotalDuration(), 0.001);
+   }
+
+   @Test
+   public void testMatrixResultLeavesOutQuarantinedFailures() throws Exception {
+      MatrixProject matrix = j.jenkins.createProject(MatrixProject.class, "matrix");
+      matrix.setAxes(new AxisList(new TextAxis("axis", "a", "b")));
+      DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers = new DescribableList<>(matrix);
+      publishers.add(new QuarantineTestDataPublisher());
+      QuarantinableJUnitResultArchiver archiver = new QuarantinableJUnitResultArchiver("*.xml");
+      archiver.setTestDataPublishers(publishers);
+      matrix.getPublishersList().add(archiver);
+      matrix.getBuildersList().add(new TestBuilder() {
+         public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                 throws InterruptedException, IOException {
+            build.getWorkspace().child("junit.xml").copyFrom(getClass().getResource("junit-1-failure.xml"));
+            return true;
+         }
+      });
+
+      MatrixBuild build = matrix.scheduleBuild2(0).get();
+      assertTrue(build.getResult() == Result.UNSTABLE);
+      assertEquals(2, build.getExactRuns().size());
+      for (MatrixRun run : build.getExactRuns()) {
+         run.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB")
+                 .getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      }
+
+      build = matrix.scheduleBuild2(0).get();
+      assertTrue(build.getResult() == Result.SUCCESS);
+      for (MatrixRun run : build.getExactRuns()) {
+         assertTrue(run.getResult() == Result.SUCCESS);
+      }
+
+      // one configuration failing again makes the whole build unstable
+      build.getExactRuns().get(0).getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestB")
+              .getTestAction(QuarantineTestAction.class).release();
+      build = matrix.scheduleBuild2(0).get();
+      assertTrue(build.getResult() == Result.UNSTABLE);
+   }
+
+   @Test
+   public void testAggregatingJobLeavesOutQuarantinedFailures() throws Exception {
+      FreeStyleProject aggregator = j.createFreeStyleProject("aggregator");
+      aggregator.getPublishersList().add(new QuarantineAggregator(projectName));
+
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      FreeStyleBuild build = aggregator.scheduleBuild2(0).get();
+      assertTrue(build.getResult() == Result.UNSTABLE);
+
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      build = aggregator.scheduleBuild2(0).get();
+      assertTrue(build.getResult() == Result.SUCCESS);
+   }
+
+   @Test
+   public void testQuarantinesAreIndexedByUser() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      action.quarantine("user1", "reason");
+      tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user2", "reason");
+
+      Map<String, List<QuarantineRecord>> byUser = QuarantineIndex.get().getByUser("user1");
+      assertEquals(1, byUser.size());
+      assertEquals(1, byUser.get(projectName).size());
+      assertEquals(tr.getSuite("SuiteA").getCase("TestB").getId(), byUser.get(projectName).get(0).getTestObjectId());
+
+      tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      assertEquals(1, QuarantineIndex.get().getByUser("user1").get(projectName).size());
+      assertEquals(1, QuarantineIndex.get().getByUser("user2").get(projectName).size());
+
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).release("user1");
+      assertTrue(QuarantineIndex.get().getByUser("user1").isEmpty());
+      assertEquals(1, QuarantineIndex.get().getByUser("user2").size());
+   }
+
+   @Test
+   public void testListenersAreToldOfQuarantinedFailures() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      String id = tr.getSuite("SuiteA").getCase("TestB").getId();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      assertTrue(QuarantineEventBus.get().awaitDelivery(10000));
+
+      List<QuarantineEvent> events = j.jenkins.getExtensionList(EventCollector.class).get(0).events;
+      assertEquals(1, events.size());
+      QuarantineEvent event = events.get(0);
+      assertEquals(QuarantineEvent.Type.QUARANTINED_TEST_FAILED, event.getType());
+      assertEquals(projectName, event.getJob());
+      assertEquals(build.getNumber(), event.getBuild());
+      assertEquals(id, event.getTestObjectId());
+      assertEquals("user1", event.getUser());
+      assertEquals(0, QuarantineEventBus.get().getDropped());
+   }
+
+   @TestExtension("testListenersAreToldOfQuarantinedFailures")
+   public static class EventCollector extends QuarantineListener {
+      final List<QuarantineEvent> events = new CopyOnWriteArrayList<QuarantineEvent>();
+
+      @Override
+      public void onEvent(QuarantineEvent event) {
+         events.add(event);
+      }
+   }
+
+   @Test
+   public void testFailuresOfQuarantinedTestsArePostedToWebhook() throws Exception {
+      final BlockingQueue<String> bodies = new LinkedBlockingQueue<String>();
+      final AtomicInteger requests = new AtomicInteger();
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/hook", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+            // turn away the first post so it has to be retried
+            if (requests.incrementAndGet() == 1) {
+               exchange.sendResponseHeaders(503, -1);
+            } else {
+               bodies.add(body);
+               exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+         }
+      });
+      server.start();
+      long retryDelay = WebhookNotifier.RETRY_DELAY_MILLIS;
+      WebhookNotifier.RETRY_DELAY_MILLIS = 10;
+      try {
+         QuarantineConfiguration config = QuarantineConfiguration.get();
+         config.setWebhookUrls("http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+         config.setWebhookBatchSeconds(1);
+
+         TestResult tr = getResultsFromJUnitResult("junit-2-failures.xml");
+         tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+         tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+         FreeStyleBuild build = runBuildWithJUnitResult("junit-2-failures.xml");
+         assertTrue(build.getResult() == Result.SUCCESS);
+
+         // both failures in one post
+         String body = bodies.poll(30, TimeUnit.SECONDS);
+         assertNotNull(body);
+         JSONObject json = JSONObject.fromObject(body);
+         assertEquals(2, json.getInt("count"));
+         JSONArray events = json.getJSONArray("events");
+         assertEquals(2, events.size());
+         assertEquals(projectName, events.getJSONObject(0).getString("job"));
+         assertEquals(build.getNumber(), events.getJSONObject(0).getInt("build"));
+         assertEquals("user1", events.getJSONObject(0).getString("user"));
+         assertTrue(json.getString("text").contains("SuiteA.TestB"));
+         assertEquals(2, requests.get());
+      } finally {
+         WebhookNotifier.RETRY_DELAY_MILLIS = retryDelay;
+         server.stop(0);
+      }
+   }
+
+   @Test
+   public void testHangingWebhookDoesNotHoldUpOthers() throws Exception {
+      final BlockingQueue<String> bodies = new LinkedBlockingQueue<String>();
+      final CountDownLatch release = new CountDownLatch(1);
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.createContext("/hanging", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            try {
+               release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+         }
+      });
+      server.createContext("/hook", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            bodies.add(IOUtils.toString(exchange.getRequestBody(), "UTF-8"));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+         }
+      });
+      server.start();
+      try {
+         String base = "http://127.0.0.1:" + server.getAddress().getPort();
+         QuarantineConfiguration config = QuarantineConfiguration.get();
+         config.setWebhookUrls(base + "/hanging " + base + "/hook");
+         config.setWebhookBatchSeconds(1);
+
+         TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+         tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+         runBuildWithJUnitResult("junit-1-failure.xml");
+
+         String body = bodies.poll(20, TimeUnit.SECONDS);
+         assertNotNull(body);
+         assertEquals(1, JSONObject.fromObject(body).getInt("count"));
+      } finally {
+         release.countDown();
+         server.stop(0);
+      }
+   }
+
+   @Test
+   public void testIndexIsRestoredFromSnapshotAndAuditLog() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-2-failures.xml");
+      String testB = tr.getSuite("SuiteA").getCase("TestB").getId();
+      String testA = tr.getSuite("SuiteB").getCase("TestA").getId();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      QuarantineIndex.get().save();
+
+      // changes after the snapshot, e.g. right before a restart
+      QuarantineAuditLog.record(QuarantineAuditLog.Type.RELEASE, projectName, null, testB, "user1", null);
+      long expiry = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+      QuarantineAuditLog.record(QuarantineAuditLog.Type.QUARANTINE, projectName, null, testA, "user2", "later",
+            expiry);
+
+      QuarantineIndex restarted = new QuarantineIndex();
+      restarted.load();
+      Map<String, QuarantineRecord> records = restarted.get(projectName).getRecords();
+      assertFalse(records.containsKey(testB));
+      assertEquals("user2", records.get(testA).getQuarantinedBy());
+      assertEquals("later", records.get(testA).getReason());
+      assertEquals(expiry, records.get(testA).getExpiryMillis());
+      assertEquals(1, restarted.getByUser("user2").get(projectName).size());
+      assertTrue(restarted.getByUser("user1").isEmpty());
+   }
+
+   @Test
+   public void testBootstrapIndexesJobsFromTheirLatestBuild() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      String id = tr.getSuite("SuiteA").getCase("TestB").getId();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      // as if the job wasn't built since the plugin was installed
+      QuarantineIndex index = QuarantineIndex.get();
+      index.remove(projectName);
+      assertNull(index.get(projectName));
+
+      assertTrue(index.bootstrap(new ArrayDeque<String>(Arrays.asList(projectName, "gone")),
+              QuarantineIndex.BOOTSTRAP_BATCH));
+      assertEquals("user1", index.get(projectName).getRecords().get(id).getQuarantinedBy());
+      assertEquals(1, index.getByUser("user1").get(projectName).size());
+   }
+
+   @Test
+   public void testIndexFollowsRenamedAndDeletedJobs() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      String id = tr.getSuite("SuiteA").getCase("TestB").getId();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      QuarantineIndex index = QuarantineIndex.get();
+      project.renameTo("renamed");
+      assertNull(index.get(projectName));
+      assertTrue(index.get("renamed").getRecords().containsKey(id));
+      assertEquals(1, index.getByUser("user1").get("renamed").size());
+      assertFalse(index.getByUser("user1").containsKey(projectName));
+
+      project.delete();
+      assertNull(index.get("renamed"));
+      assertTrue(index.getByUser("user1").isEmpty());
+   }
+
    @Test
    public void testSendsEmailWhenQuarantinedFails() throws Exception {
       Mailbox.clearAll();
@@ -346,6 +1069,33 @@ public class QuarantineCoreTest {
       assertEquals(1, inbox.size());
    }
 
+   @Test
+   public void testFailingTheSameWayIsNotifiedOnce() throws Exception {
+      Mailbox.clearAll();
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isNewSignature());
+      String signature = action.getSignature();
+      assertNotNull(signature);
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      action = getActionAfterReload(build.getNumber(), "SuiteA", "TestB");
+      assertFalse(action.isNewSignature());
+      assertEquals(signature, action.getSignature());
+      assertEquals(1, action.getSignatureCount());
+      assertEquals(1, Mailbox.get(user1Mail).size());
+
+      tr = getResultsFromJUnitResult("junit-1-failure-other.xml");
+      action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertTrue(action.isNewSignature());
+      assertFalse(signature.equals(action.getSignature()));
+      assertEquals(2, action.getSignatureCount());
+      assertEquals(2, Mailbox.get(user1Mail).size());
+   }
+
    @Test
    public void testDoesntEmailWhenQuarantinedPasses() throws Exception {
       Mailbox.clearAll();
@@ -371,4 +1121,35 @@ public class QuarantineCoreTest {
       assertEquals(1, inbox.size());
    }
 
+   @Test
+   public void testDigestCoalescesFailuresAcrossBuilds() throws Exception {
+      Mailbox.clearAll();
+      QuarantineConfiguration.get().setDigestMode(QuarantineConfiguration.DigestMode.HOURLY);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      getResultsFromJUnitResult("junit-1-failure.xml");
+      getResultsFromJUnitResult("junit-1-failure.xml");
+
+      assertEquals(0, Mailbox.get(user1Mail).size());
+      assertEquals(1, NotificationDigest.get().getPending("user1"));
+
+      NotificationDigest.get().flush();
+
+      assertEquals(1, Mailbox.get(user1Mail).size());
+      assertEquals(0, NotificationDigest.get().getPending("user1"));
+   }
+
+   @Test
+   public void testUserInfoCacheIsInvalidatedWhenUserChanges() throws Exception {
+      UserInfoCache cache = UserInfoCache.get();
+      assertEquals(user1Mail, cache.getEmailAddress("user1"));
+
+      User.get("user1").addProperty(new Mailer.UserProperty("other@mail.com"));
+
+      assertEquals("other@mail.com", cache.getEmailAddress("user1"));
+      assertEquals("nobody", cache.getDisplayName("nobody"));
+      assertNull(cache.getEmailAddress("nobody"));
+   }
+
 }
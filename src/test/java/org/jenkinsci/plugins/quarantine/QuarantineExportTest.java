@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.quarantine;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class QuarantineExportTest {
+
+   private static final QuarantineRecord RECORD =
+         new QuarantineRecord("junit/pkg/Suite/test", "user1", "flaky, says \"bob\"", 0, 0, 3);
+
+   private static final QuarantineSummary.Entry PASSED = new QuarantineSummary.Entry("junit/pkg/Suite/test",
+         "pkg.Suite.test", "pkg/Suite/test", QuarantineSummary.PASSED, 1, 3, null, "user1", 0, null, null);
+
+   @Test
+   public void testCsvQuotesSpecialCharacters() throws Exception {
+      StringWriter out = new StringWriter();
+      QuarantineExport export = QuarantineExport.create("csv");
+      export.begin(out);
+      export.write("folder/job", RECORD, PASSED);
+
+      assertEquals("job,test,status,streak,quarantinedBy,date,reason\r\n"
+            + "folder/job,junit/pkg/Suite/test,passing,3,user1,1970-01-01T00:00:00Z,\"flaky, says \"\"bob\"\"\"\r\n",
+            out.toString());
+   }
+
+   @Test
+   public void testNdJsonWritesOneObjectPerLine() throws Exception {
+      StringWriter out = new StringWriter();
+      QuarantineExport export = QuarantineExport.create("ndjson");
+      export.begin(out);
+      export.write("job", RECORD, PASSED);
+      export.write("job", new QuarantineRecord("other", "user2", null, 0), null);
+
+      String[] lines = out.toString().split("\n");
+      assertEquals(2, lines.length);
+      JSONObject first = JSONObject.fromObject(lines[0]);
+      assertEquals("passing", first.getString("status"));
+      assertEquals(3, first.getInt("streak"));
+      assertEquals("flaky, says \"bob\"", first.getString("reason"));
+      JSONObject second = JSONObject.fromObject(lines[1]);
+      assertEquals("unknown", second.getString("status"));
+      assertFalse(second.has("reason"));
+   }
+
+   @Test
+   public void testUnknownFormat() {
+      assertNull(QuarantineExport.create("xml"));
+   }
+}
@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class QuarantineIndexFileTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private File write() throws Exception {
+      Map<String, QuarantineRecord> records = new HashMap<String, QuarantineRecord>();
+      records.put("a", new QuarantineRecord("a", "user1", "flaky", 1000, 5000, 2, 7, 3000));
+      records.put("b", new QuarantineRecord("b", null, null, 2000));
+      Map<String, QuarantineIndex.Snapshot> jobs = new HashMap<String, QuarantineIndex.Snapshot>();
+      jobs.put("folder/job", new QuarantineIndex.Snapshot(8, records));
+      jobs.put("empty", new QuarantineIndex.Snapshot(3, Collections.<String, QuarantineRecord>emptyMap()));
+
+      File file = new File(folder.getRoot(), QuarantineIndexFile.FILE_NAME);
+      QuarantineIndexFile.write(file, 12345, jobs);
+      return file;
+   }
+
+   @Test
+   public void testWriteAndRead() throws Exception {
+      QuarantineIndexFile.Content content = QuarantineIndexFile.read(write());
+      assertEquals(12345, content.journalTime);
+      assertEquals(Integer.valueOf(8), content.builds.get("folder/job"));
+      assertEquals(Integer.valueOf(3), content.builds.get("empty"));
+      assertTrue(content.records.get("empty").isEmpty());
+
+      QuarantineRecord a = content.records.get("folder/job").get("a");
+      assertEquals("user1", a.getQuarantinedBy());
+      assertEquals("flaky", a.getReason());
+      assertEquals(1000, a.getDate().getTime());
+      assertEquals(5000, a.getExpiryMillis());
+      assertEquals(2, a.getPassStreak());
+      assertEquals(7, a.getLastSeen());
+      assertEquals(3000, a.getLastSeenTime());
+      QuarantineRecord b = content.records.get("folder/job").get("b");
+      assertNull(b.getQuarantinedBy());
+      assertNull(b.getReason());
+      assertEquals(0, b.getExpiryMillis());
+   }
+
+   @Test
+   public void testDamagedFilesAreIgnored() throws Exception {
+      assertNull(QuarantineIndexFile.read(new File(folder.getRoot(), "missing")));
+
+      File file = write();
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.seek(30);
+      int b = raf.read();
+      raf.seek(30);
+      raf.write(b ^ 1);
+      raf.close();
+      assertNull(QuarantineIndexFile.read(file));
+
+      file = write();
+      raf = new RandomAccessFile(file, "rw");
+      raf.setLength(raf.length() - 20);
+      raf.close();
+      assertNull(QuarantineIndexFile.read(file));
+   }
+}
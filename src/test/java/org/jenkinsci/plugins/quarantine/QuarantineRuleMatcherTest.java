@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QuarantineRuleMatcherTest {
+
+   @Test
+   public void testEmptyRulesMatchNothing() {
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile(null, "", "# just a comment");
+      assertTrue(matcher.isEmpty());
+      assertNull(matcher.match("SuiteA.TestB"));
+   }
+
+   @Test
+   public void testExactRule() {
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile("SuiteA.TestB");
+      assertEquals("SuiteA.TestB", matcher.match("SuiteA.TestB"));
+      assertNull(matcher.match("SuiteA.TestBB"));
+      assertNull(matcher.match("SuiteA.Test"));
+   }
+
+   @Test
+   public void testPrefixRule() {
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile("com.acme.it.kafka.*");
+      assertEquals("com.acme.it.kafka.*", matcher.match("com.acme.it.kafka.ConsumerIT.testPoll"));
+      assertNull(matcher.match("com.acme.it.kafkax.ConsumerIT.testPoll"));
+   }
+
+   @Test
+   public void testGlobRules() {
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile("*Test.testRetry[*]\ncom.acme.?ar*IT.test*");
+      assertEquals("*Test.testRetry[*]", matcher.match("com.acme.FooTest.testRetry[3]"));
+      assertNull(matcher.match("com.acme.FooTest.testRetry"));
+      assertEquals("com.acme.?ar*IT.test*", matcher.match("com.acme.BarServiceIT.testIt"));
+      assertNull(matcher.match("com.acme.BarServiceTest.testIt"));
+   }
+
+   @Test
+   public void testRegexRules() {
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile("re:.*\\.Slow[A-Z]\\w*\\..*\nre:[broken");
+      assertEquals(1, matcher.size());
+      assertEquals("re:.*\\.Slow[A-Z]\\w*\\..*", matcher.match("com.acme.SlowQueryTest.testIt"));
+      assertNull(matcher.match("com.acme.slowQueryTest.testIt"));
+   }
+
+   @Test
+   public void testManyRulesSharingAPrefix() {
+      StringBuilder rules = new StringBuilder();
+      for (int i = 0; i < 5000; i++) {
+         rules.append("com.acme.module").append(i).append(".*\n");
+      }
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile(rules.toString());
+      assertEquals(5000, matcher.size());
+      assertEquals("com.acme.module4711.*", matcher.match("com.acme.module4711.FooTest.testBar"));
+      assertNull(matcher.match("com.acme.other.FooTest.testBar"));
+   }
+
+   @Test
+   public void testGlobsStartingWithAWildcard() {
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile("*IT.testRetry\n?oo.*Slow*\n*.flaky*\n*Kafka*");
+      assertEquals("*IT.testRetry", matcher.match("com.acme.KafkaIT.testRetry"));
+      assertEquals("?oo.*Slow*", matcher.match("foo.bar.SlowTest.testIt"));
+      assertEquals("*.flaky*", matcher.match("com.acme.flakyStuff.FooTest.testIt"));
+      assertEquals("*Kafka*", matcher.match("com.acme.KafkaConsumerTest.testPoll"));
+      assertNull(matcher.match("com.acme.FooIT.testRetryAgain"));
+      assertNull(matcher.match("com.acme.FooTest.testIt"));
+   }
+
+   @Test
+   public void testManyRulesStartingWithAWildcard() {
+      StringBuilder rules = new StringBuilder();
+      for (int i = 0; i < 5000; i++) {
+         rules.append("*Test.test").append(i).append("\n");
+         rules.append("*Module").append(i).append("Test*\n");
+      }
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile(rules.toString());
+      assertEquals(10000, matcher.size());
+      assertEquals("*Test.test4711", matcher.match("com.acme.FooTest.test4711"));
+      assertEquals("*Module42Test*", matcher.match("com.acme.Module42Test.testBar"));
+      assertNull(matcher.match("com.acme.Module42IT.testBar"));
+   }
+
+   @Test
+   public void testRegexRulesAreIndexedByTheirLiteralPrefix() {
+      assertEquals("com.acme.", QuarantineRuleMatcher.literalPrefix("com\\.acme\\..*"));
+      assertEquals("com.acm", QuarantineRuleMatcher.literalPrefix("com\\.acme?"));
+      assertEquals("fo", QuarantineRuleMatcher.literalPrefix("fo+bar"));
+      assertEquals("", QuarantineRuleMatcher.literalPrefix("foo|bar"));
+      assertEquals("", QuarantineRuleMatcher.literalPrefix("(?i)foo"));
+
+      QuarantineRuleMatcher matcher = QuarantineRuleMatcher.compile("re:com\\.acme\\..*IT\\..*\nre:(?i).*SLOW.*");
+      assertEquals("re:com\\.acme\\..*IT\\..*", matcher.match("com.acme.FooIT.testBar"));
+      assertEquals("re:(?i).*SLOW.*", matcher.match("org.other.SlowTest.testBar"));
+      assertNull(matcher.match("org.other.FooIT.testBar"));
+   }
+
+   @Test
+   public void testInvalidRegexIsReported() {
+      assertNull(QuarantineRuleMatcher.check("SuiteA.*\nre:.*Slow.*"));
+      String problem = QuarantineRuleMatcher.check("SuiteA.*\n\nre:[broken");
+      assertNotNull(problem);
+      assertTrue(problem.startsWith("Line 3:"));
+   }
+}
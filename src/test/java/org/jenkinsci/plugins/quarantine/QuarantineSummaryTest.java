@@ -0,0 +1,67 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class QuarantineSummaryTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testWriteAndRead() throws Exception {
+      File file = new File(folder.getRoot(), QuarantineSummary.FILE_NAME);
+      QuarantineSummary.write(file, Arrays.asList(
+            new QuarantineSummary.Entry("a", "Suite.a", "Suite/a", QuarantineSummary.FAILED, 1.5f, 0,
+                  "bööm", "user1", 1000, "flaky", null),
+            new QuarantineSummary.Entry("b", "Suite.b", "Suite/b", QuarantineSummary.PASSED, 0, 3, null,
+                  "SYSTEM", 2000, null, "Suite.*")));
+
+      Map<String, QuarantineSummary.Entry> entries = QuarantineSummary.read(file);
+      assertEquals(Arrays.asList("a", "b"), Arrays.asList(entries.keySet().toArray()));
+      QuarantineSummary.Entry a = entries.get("a");
+      assertFalse(a.isPassed());
+      assertEquals(1.5f, a.getDuration(), 0);
+      assertEquals("bööm", a.getErrorDetails());
+      assertEquals("flaky", a.getReason());
+      assertNull(a.getRule());
+      QuarantineSummary.Entry b = entries.get("b");
+      assertTrue(b.isPassed());
+      assertEquals(3, b.getPasses());
+      assertEquals(2000, b.getDate().getTime());
+      assertNull(b.getReason());
+      assertEquals("Suite.*", b.getRule());
+   }
+
+   @Test
+   public void testSignaturesAreKept() throws Exception {
+      File file = new File(folder.getRoot(), QuarantineSummary.FILE_NAME);
+      QuarantineSummary.write(file, Arrays.asList(
+            new QuarantineSummary.Entry("a", "Suite.a", "Suite/a", QuarantineSummary.FAILED, 1.5f, 0, "boom",
+                  "user1", 1000, null, null, 4, 3, 6.0, 1.5, 2, true)));
+
+      QuarantineSummary.Entry a = QuarantineSummary.read(file).get("a");
+      assertEquals(3, a.getFailures());
+      assertEquals(2, a.getSignatures());
+      assertTrue(a.isNewSignature());
+   }
+
+   @Test
+   public void testUnreadableFiles() throws Exception {
+      assertNull(QuarantineSummary.read(new File(folder.getRoot(), "missing")));
+
+      File file = folder.newFile();
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[] {0x51, 0x53, 0x55, 0x4d, 0, 0, 0, 1, 0, 0, 0, 5});
+      out.close();
+      assertNull(QuarantineSummary.read(file));
+   }
+}
@@ -7,6 +7,7 @@ import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.CaseResult;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
+import hudson.model.Item;
 import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.util.DescribableList;
@@ -14,7 +15,9 @@ import hudson.util.DescribableList;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import jenkins.model.Jenkins;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
 import org.jvnet.hudson.test.TestBuilder;
 
 import hudson.Launcher;
@@ -70,6 +73,22 @@ public class QuarantineUiTest {
       return runBuildWithJUnitResult(xmlFileName).getAction(TestResultAction.class).getResult();
    }
 
+   @Test
+   public void testAuditLeavesOutJobsTheCallerCannotSee() throws Exception {
+      j.createFreeStyleProject("secret");
+      QuarantineAuditLog.record(QuarantineAuditLog.Type.QUARANTINE, projectName, null, "junit/a", "user1", "visible");
+      QuarantineAuditLog.record(QuarantineAuditLog.Type.QUARANTINE, "secret", null, "junit/b", "user1", "hidden");
+      j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+              .grant(Jenkins.READ).everywhere().to("user1")
+              .grant(Item.READ).onItems(project).to("user1"));
+
+      JenkinsRule.WebClient wc = j.createWebClient();
+      wc.login("user1", "user1");
+      String json = wc.goTo("quarantine/audit", "application/json").getWebResponse().getContentAsString();
+      assertTrue(json.contains("visible"));
+      assertFalse(json.contains("hidden"));
+   }
+
    @Test
    public void testTextSummaryForUnquarantinedTestAuthenticated() throws Exception {
       FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
@@ -109,6 +128,81 @@ public class QuarantineUiTest {
       assertNotNull(page);
    }
 
+   @Test
+   public void testExportListsQuarantinedTests() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      HtmlPage page = whenNavigatingToTestCase(tr.getSuite("SuiteA").getCase("TestA"), true);
+      whenQuarantiningTestOnPage(page);
+
+      JenkinsRule.WebClient wc = j.createWebClient();
+      wc.login("user1", "user1");
+      String export = wc.goTo("quarantine/export?format=ndjson", "application/x-ndjson").getWebResponse()
+            .getContentAsString();
+      assertTrue(export.contains("\"job\":\"" + projectName + "\""));
+      assertTrue(export.contains("\"quarantinedBy\":\"user1\""));
+      assertTrue(export.contains("\"reason\":\"" + quarantineText + "\""));
+
+      export = wc.goTo("quarantine/export", "text/csv").getWebResponse().getContentAsString();
+      assertTrue(export.startsWith("job,test,status,streak,quarantinedBy,date,reason"));
+      assertTrue(export.contains(",user1,"));
+   }
+
+   @Test
+   public void testResultApiListsOnlyQuarantinedTests() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      JenkinsRule.WebClient wc = j.createWebClient();
+      String json = wc.goTo(build.getUrl() + "testReport/quarantine/api/json", "application/json")
+            .getWebResponse().getContentAsString();
+      assertTrue(json.contains("\"quarantined\":[]"));
+
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      json = wc.goTo(build.getUrl() + "testReport/quarantine/api/json", "application/json")
+            .getWebResponse().getContentAsString();
+      assertTrue(json.contains("\"quarantinedBy\":\"user1\""));
+      assertTrue(json.contains(tr.getSuite("SuiteA").getCase("TestB").getId()));
+      assertFalse(json.contains(tr.getSuite("SuiteA").getCase("TestA").getId() + "\""));
+   }
+
+   @Test
+   public void testUserPageListsTheirQuarantines() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      JenkinsRule.WebClient wc = j.createWebClient();
+      wc.login("user1", "user1");
+      String json = wc.goTo("user/user1/quarantine/api/json", "application/json").getWebResponse()
+            .getContentAsString();
+      assertTrue(json.contains("\"job\":\"" + projectName + "\""));
+      assertTrue(json.contains(tr.getSuite("SuiteA").getCase("TestB").getId()));
+      assertTrue(json.contains("\"status\":\"failing\""));
+
+      HtmlPage page = wc.goTo("user/user1/quarantine/");
+      assertTrue(page.asText().contains("reason"));
+      assertTrue(page.asText().contains(tr.getSuite("SuiteA").getCase("TestB").getFullName()));
+   }
+
+   @Test
+   public void testGlobalScopeIsOfferedToAdministratorsOnly() throws Exception {
+      QuarantineConfiguration.get().setGlobalScopeEnabled(true);
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      CaseResult test = build.getAction(TestResultAction.class).getResult().getSuite("SuiteA").getCase("TestA");
+      j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+              .grant(Jenkins.READ).everywhere().to("user1")
+              .grant(Item.READ).onItems(project).to("user1")
+              .grant(Jenkins.ADMINISTER).everywhere().to("admin"));
+
+      HtmlPage page = whenNavigatingToTestCase(test, true);
+      assertTrue(page.getFormByName("quarantine").getSelectsByName("scope").isEmpty());
+
+      JenkinsRule.WebClient wc = j.createWebClient();
+      wc.login("admin", "admin");
+      page = wc.goTo(test.getOwner().getUrl() + "testReport/" + test.getUrl());
+      assertFalse(page.getFormByName("quarantine").getSelectsByName("scope").isEmpty());
+   }
+
    private HtmlPage whenNavigatingToTestCase(CaseResult testCase, boolean authenticate) throws Exception {
       JenkinsRule.WebClient wc = j.createWebClient();
       if (authenticate) {
@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+   @Test
+   public void testFiresOnlyWhenDue() {
+      TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 0);
+      wheel.schedule("a", 25);
+      wheel.schedule("b", 35);
+
+      assertTrue(wheel.advance(20).isEmpty());
+      assertEquals(Collections.singletonList("a"), wheel.advance(25));
+      assertTrue(wheel.advance(30).isEmpty());
+      assertEquals(Collections.singletonList("b"), wheel.advance(40));
+      assertEquals(0, wheel.size());
+   }
+
+   @Test
+   public void testDeadlinesBeyondOneRotationWaitForTheirRound() {
+      TimerWheel<String> wheel = new TimerWheel<String>(10, 4, 0);
+      wheel.schedule("near", 15);
+      wheel.schedule("far", 55);
+
+      assertEquals(Collections.singletonList("near"), wheel.advance(20));
+      assertTrue(wheel.advance(50).isEmpty());
+      assertEquals(Collections.singletonList("far"), wheel.advance(60));
+   }
+
+   @Test
+   public void testLongPauseFiresEverythingDue() {
+      TimerWheel<String> wheel = new TimerWheel<String>(10, 4, 0);
+      wheel.schedule("a", 5);
+      wheel.schedule("b", 75);
+      wheel.schedule("c", 1000);
+
+      List<String> due = wheel.advance(500);
+      Collections.sort(due);
+      assertEquals(Arrays.asList("a", "b"), due);
+      assertEquals(1, wheel.size());
+   }
+
+   @Test
+   public void testPastDeadlineFiresOnNextAdvance() {
+      TimerWheel<String> wheel = new TimerWheel<String>(10, 4, 100);
+      wheel.schedule("late", 50);
+      assertEquals(Collections.singletonList("late"), wheel.advance(100));
+   }
+}